@@ -0,0 +1,62 @@
+package com.nerdynick.queue.blocking.bucket.benchmarks;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Consumer scalability. Every thread polls an element and puts it straight
+ * back, keeping the queue at a steady depth, so the score is the rate at which
+ * concurrent consumers can claim buckets. Run once per thread count, e.g.
+ * <code>java -jar target/benchmarks.jar ConsumerScaling -t 1</code> up to
+ * <code>-t 32</code>, and compare the total throughput.
+ * 
+ * @author Nikoleta Verbeck
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConsumerScalingBenchmark {
+	private static final int DEPTH = 16;
+
+	@Param({ Queues.BUCKETED, Queues.LINKED })
+	public String impl;
+	@Param({ "1000", "100000" })
+	public int buckets;
+
+	private BlockingQueue<Long> queue;
+
+	@Setup(Level.Iteration)
+	public void setup() {
+		this.queue = Queues.create(this.impl, Queues.NULL_SENSOR, Integer.MAX_VALUE);
+		for (int i = 0; i < DEPTH; i++) {
+			for (long k = 0; k < this.buckets; k++) {
+				this.queue.offer(Long.valueOf(k));
+			}
+		}
+	}
+
+	@Benchmark
+	public Long pollOffer() {
+		final Long e = this.queue.poll();
+		if (e != null) {
+			this.queue.offer(e);
+		}
+		return e;
+	}
+}
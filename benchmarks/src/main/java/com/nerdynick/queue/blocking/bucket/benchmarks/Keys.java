@@ -0,0 +1,55 @@
+package com.nerdynick.queue.blocking.bucket.benchmarks;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Pre-generated element streams for benchmarks. Each element is its own
+ * bucketing key, drawn either uniformly or Zipf distributed over the bucket
+ * count, and boxed up front so the measured loops don't allocate.
+ * 
+ * @author Nikoleta Verbeck
+ */
+public final class Keys {
+	public static final String UNIFORM = "uniform";
+	public static final String ZIPF = "zipf";
+
+	private static final int SIZE = 1 << 16;
+	private static final int MASK = SIZE - 1;
+
+	private final Long[] elements = new Long[SIZE];
+	private int index;
+
+	/**
+	 * @param buckets Number of distinct keys
+	 * @param skew    {@link #UNIFORM} or {@link #ZIPF}
+	 * @param seed    Seed, vary per thread
+	 */
+	public Keys(final int buckets, final String skew, final long seed) {
+		final Random random = new Random(seed);
+		if (ZIPF.equals(skew)) {
+			// Cumulative distribution for exponent 1, sampled by binary search
+			final double[] cdf = new double[buckets];
+			double sum = 0;
+			for (int i = 0; i < buckets; i++) {
+				sum += 1.0 / (i + 1);
+				cdf[i] = sum;
+			}
+			for (int i = 0; i < SIZE; i++) {
+				int k = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+				k = k < 0 ? -k - 1 : k;
+				this.elements[i] = Long.valueOf(Math.min(k, buckets - 1));
+			}
+		} else if (UNIFORM.equals(skew)) {
+			for (int i = 0; i < SIZE; i++) {
+				this.elements[i] = Long.valueOf(random.nextInt(buckets));
+			}
+		} else {
+			throw new IllegalArgumentException("Unknown skew " + skew);
+		}
+	}
+
+	public Long next() {
+		return this.elements[this.index++ & MASK];
+	}
+}
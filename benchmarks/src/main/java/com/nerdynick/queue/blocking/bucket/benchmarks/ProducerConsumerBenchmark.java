@@ -0,0 +1,127 @@
+package com.nerdynick.queue.blocking.bucket.benchmarks;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Concurrent producers and consumers at different thread ratios. Producers use
+ * offer and consumers use poll against a bounded queue, so neither side can
+ * block past the end of an iteration. Compare the producer and consumer rates
+ * reported for each group.
+ * 
+ * @author Nikoleta Verbeck
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProducerConsumerBenchmark {
+	private static final int CAPACITY = 1 << 16;
+
+	@Param({ Queues.BUCKETED, Queues.LINKED, Queues.ARRAY })
+	public String impl;
+	@Param({ "1", "100", "10000", "100000" })
+	public int buckets;
+	@Param({ Keys.UNIFORM, Keys.ZIPF })
+	public String skew;
+	@Param({ Queues.NULL_SENSOR, Queues.RATE_LIMITED })
+	public String sensor;
+
+	private BlockingQueue<Long> queue;
+
+	@State(Scope.Thread)
+	public static class ThreadState {
+		Keys keys;
+
+		@Setup
+		public void setup(final ProducerConsumerBenchmark benchmark) {
+			this.keys = new Keys(benchmark.buckets, benchmark.skew, Thread.currentThread().getId());
+		}
+	}
+
+	@Setup(Level.Iteration)
+	public void setup() {
+		this.queue = Queues.create(this.impl, this.sensor, CAPACITY);
+	}
+
+	private boolean produce(final ThreadState state) {
+		return this.queue.offer(state.keys.next());
+	}
+
+	private Long consume() {
+		return this.queue.poll();
+	}
+
+	@Benchmark
+	@Group("p1c1")
+	@GroupThreads(1)
+	public boolean p1c1Producer(final ThreadState state) {
+		return this.produce(state);
+	}
+
+	@Benchmark
+	@Group("p1c1")
+	@GroupThreads(1)
+	public Long p1c1Consumer() {
+		return this.consume();
+	}
+
+	@Benchmark
+	@Group("p4c1")
+	@GroupThreads(4)
+	public boolean p4c1Producer(final ThreadState state) {
+		return this.produce(state);
+	}
+
+	@Benchmark
+	@Group("p4c1")
+	@GroupThreads(1)
+	public Long p4c1Consumer() {
+		return this.consume();
+	}
+
+	@Benchmark
+	@Group("p1c4")
+	@GroupThreads(1)
+	public boolean p1c4Producer(final ThreadState state) {
+		return this.produce(state);
+	}
+
+	@Benchmark
+	@Group("p1c4")
+	@GroupThreads(4)
+	public Long p1c4Consumer() {
+		return this.consume();
+	}
+
+	@Benchmark
+	@Group("p4c4")
+	@GroupThreads(4)
+	public boolean p4c4Producer(final ThreadState state) {
+		return this.produce(state);
+	}
+
+	@Benchmark
+	@Group("p4c4")
+	@GroupThreads(4)
+	public Long p4c4Consumer() {
+		return this.consume();
+	}
+}
@@ -0,0 +1,100 @@
+package com.nerdynick.queue.blocking.bucket.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Single threaded cost of the hot paths against a queue that already holds an
+ * element in every bucket, so every operation runs against a populated
+ * schedule.
+ * <p>
+ * The JDK baselines ignore the bucket, skew and sensor parameters. Restrict
+ * them on the command line, e.g. <code>-p impl=linked -p buckets=1</code>.
+ * 
+ * @author Nikoleta Verbeck
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueueBenchmark {
+	private static final int BATCH = 64;
+
+	@Param({ Queues.BUCKETED, Queues.LINKED, Queues.ARRAY })
+	public String impl;
+	@Param({ "1", "100", "10000", "100000" })
+	public int buckets;
+	@Param({ Keys.UNIFORM, Keys.ZIPF })
+	public String skew;
+	@Param({ Queues.NULL_SENSOR, Queues.RATE_LIMITED })
+	public String sensor;
+
+	private BlockingQueue<Long> queue;
+
+	@State(Scope.Thread)
+	public static class ThreadState {
+		Keys keys;
+		final List<Long> sink = new ArrayList<Long>(BATCH);
+
+		@Setup
+		public void setup(final QueueBenchmark benchmark) {
+			this.keys = new Keys(benchmark.buckets, benchmark.skew, Thread.currentThread().getId());
+		}
+	}
+
+	@Setup(Level.Iteration)
+	public void setup() {
+		this.queue = Queues.create(this.impl, this.sensor);
+		for (long k = 0; k < this.buckets; k++) {
+			this.queue.offer(Long.valueOf(k));
+		}
+	}
+
+	@Benchmark
+	public boolean offer(final ThreadState state) {
+		final boolean offered = this.queue.offer(state.keys.next());
+		this.queue.poll();
+		return offered;
+	}
+
+	@Benchmark
+	public Long poll(final ThreadState state) {
+		this.queue.offer(state.keys.next());
+		return this.queue.poll();
+	}
+
+	@Benchmark
+	public Long take(final ThreadState state) throws InterruptedException {
+		this.queue.offer(state.keys.next());
+		return this.queue.take();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public int drainTo(final ThreadState state) {
+		for (int i = 0; i < BATCH; i++) {
+			this.queue.offer(state.keys.next());
+		}
+		final int drained = this.queue.drainTo(state.sink, BATCH);
+		state.sink.clear();
+		return drained;
+	}
+}
@@ -0,0 +1,69 @@
+package com.nerdynick.queue.blocking.bucket.benchmarks;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.BiFunction;
+
+import com.nerdynick.queue.blocking.bucket.Bucket;
+import com.nerdynick.queue.blocking.bucket.BucketedBlockingQueue;
+import com.nerdynick.queue.blocking.bucket.sensor.BucketSensor;
+import com.nerdynick.queue.blocking.bucket.sensor.NullSensor;
+import com.nerdynick.queue.blocking.bucket.sensor.RateLimited;
+
+/**
+ * Builds the queues compared by the benchmarks.
+ * 
+ * @author Nikoleta Verbeck
+ */
+public final class Queues {
+	public static final String BUCKETED = "bucketed";
+	public static final String LINKED = "linked";
+	public static final String ARRAY = "array";
+
+	public static final String NULL_SENSOR = "null";
+	public static final String RATE_LIMITED = "rateLimited";
+
+	private static final int ARRAY_CAPACITY = 1 << 20;
+
+	private Queues() {}
+
+	/**
+	 * @param impl   {@link #BUCKETED}, {@link #LINKED} or {@link #ARRAY}
+	 * @param sensor {@link #NULL_SENSOR} or {@link #RATE_LIMITED}, bucketed only
+	 * @return New queue where each element is its own bucketing key
+	 */
+	public static BlockingQueue<Long> create(final String impl, final String sensor) {
+		return create(impl, sensor, ARRAY_CAPACITY);
+	}
+
+	/**
+	 * @param impl     {@link #BUCKETED}, {@link #LINKED} or {@link #ARRAY}
+	 * @param sensor   {@link #NULL_SENSOR} or {@link #RATE_LIMITED}, bucketed only
+	 * @param capacity Bound on the total number of elements
+	 * @return New queue where each element is its own bucketing key
+	 */
+	public static BlockingQueue<Long> create(final String impl, final String sensor, final int capacity) {
+		if (LINKED.equals(impl)) {
+			return new LinkedBlockingQueue<Long>(capacity);
+		} else if (ARRAY.equals(impl)) {
+			return new ArrayBlockingQueue<Long>(capacity);
+		} else if (BUCKETED.equals(impl)) {
+			return BucketedBlockingQueue.<Long, Long>builder(e -> e)
+					.bucketSensor(sensor(sensor))
+					.maxElements(capacity)
+					.build();
+		}
+		throw new IllegalArgumentException("Unknown queue " + impl);
+	}
+
+	private static BiFunction<Long, Bucket<Long, Long>, BucketSensor> sensor(final String sensor) {
+		if (NULL_SENSOR.equals(sensor)) {
+			return (k, b) -> NullSensor.instance();
+		} else if (RATE_LIMITED.equals(sensor)) {
+			// Limit high enough to never throttle, measuring the sensor's own cost
+			return (k, b) -> RateLimited.perSecond(Long.MAX_VALUE);
+		}
+		throw new IllegalArgumentException("Unknown sensor " + sensor);
+	}
+}
@@ -0,0 +1,95 @@
+package com.nerdynick.gauges;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of nanosecond latencies, with log-linear buckets in the
+ * style of HdrHistogram.
+ * <p>
+ * Each power of two is split into {@value #SUB_BUCKETS} linear sub-buckets,
+ * bounding the error of a reported value to 12.5% across the whole range of a
+ * long. Recording is an index computation and an atomic increment, never
+ * allocating. Reads walk the fixed set of counters and may see a recording in
+ * progress.
+ * 
+ * @author Nikoleta Verbeck
+ */
+public class LatencyHistogram {
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS) * SUB_BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param nanos Latency to record, negatives count as 0
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		this.counts.incrementAndGet(indexOf(nanos));
+		this.count.increment();
+		this.sum.add(nanos);
+		long m;
+		while (nanos > (m = this.max.get()) && !this.max.compareAndSet(m, nanos)) {
+		}
+	}
+
+	public long count() {
+		return this.count.sum();
+	}
+
+	public long max() {
+		return this.max.get();
+	}
+
+	public double mean() {
+		final long c = this.count.sum();
+		return c == 0 ? 0 : (double) this.sum.sum() / c;
+	}
+
+	/**
+	 * @param percentile Between 0 and 100
+	 * @return Highest value equivalent to the given percentile, 0 when empty
+	 */
+	public long percentile(final double percentile) {
+		long total = 0;
+		for (int i = 0; i < this.counts.length(); i++) {
+			total += this.counts.get(i);
+		}
+		if (total == 0) {
+			return 0;
+		}
+		final long target = Math.max(1, (long) Math.ceil(Math.min(100, percentile) / 100 * total));
+		long seen = 0;
+		for (int i = 0; i < this.counts.length(); i++) {
+			seen += this.counts.get(i);
+			if (seen >= target) {
+				return Math.min(highestEquivalent(i), this.max.get());
+			}
+		}
+		return this.max.get();
+	}
+
+	static int indexOf(final long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+	}
+
+	static long highestEquivalent(final int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		final int shift = index / SUB_BUCKETS - 1;
+		final long sub = index % SUB_BUCKETS;
+		return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+	}
+}
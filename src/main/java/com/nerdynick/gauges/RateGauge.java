@@ -3,7 +3,7 @@ package com.nerdynick.gauges;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.LongAdder;
 
-public class RateGauge {
+public class RateGauge implements RateMeter {
 	private final LongAdder adder = new LongAdder();
 	private final TimeTicker ticker;
 	
@@ -29,15 +29,18 @@ public class RateGauge {
 		}
 	}
 	
+	@Override
 	public void incr() {
 		tickIfNeeded();
 		adder.increment();
 	}
+	@Override
 	public void add(long count) {
 		tickIfNeeded();
 		adder.add(count);
 	}
 	
+	@Override
 	public long currentRate() {
 		tickIfNeeded();
 		return adder.sum();
@@ -0,0 +1,12 @@
+package com.nerdynick.gauges;
+
+/**
+ * Counts events and reports how many happened within the meter's interval.
+ * 
+ * @author Nikoleta Verbeck
+ */
+public interface RateMeter {
+	public void incr();
+	public void add(long count);
+	public long currentRate();
+}
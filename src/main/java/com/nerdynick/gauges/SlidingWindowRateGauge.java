@@ -0,0 +1,114 @@
+package com.nerdynick.gauges;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * {@link RateMeter} over a sliding window, made of a ring of sub-interval
+ * counters.
+ * <p>
+ * Each counter packs the sub-interval it belongs to into its upper 32 bits and
+ * its count into the lower 32, so moving a counter on to a new sub-interval and
+ * counting into it is a single compare-and-set. Nothing is ever reset out from
+ * under a racing increment. The rate is the sum of the sub-intervals within the
+ * window, with the oldest one weighted by how much of it is still inside, so it
+ * glides across window boundaries instead of dropping to zero. Reads cost
+ * O(slices), independent of the event rate.
+ * <p>
+ * A sub-interval counts up to {@link #MAX_SLICE_COUNT} events and saturates
+ * there, so a burst can never carry into the sub-interval bits.
+ * 
+ * @author Nikoleta Verbeck
+ */
+public class SlidingWindowRateGauge implements RateMeter {
+	private static final int COUNT_BITS = 32;
+	private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+	private static final long SLICE_MASK = 0xFFFFFFFFL;
+	/**
+	 * Most events a single sub-interval can count.
+	 */
+	public static final long MAX_SLICE_COUNT = COUNT_MASK;
+
+	private final AtomicLongArray counters;
+	private final int slices;
+	private final long sliceNanos;
+	private final Clock clock;
+
+	public SlidingWindowRateGauge() {
+		this(Clock.defaultClock());
+	}
+
+	public SlidingWindowRateGauge(Clock clock) {
+		this(1, TimeUnit.SECONDS, 10, clock);
+	}
+
+	public SlidingWindowRateGauge(long window, TimeUnit unit) {
+		this(window, unit, 10, Clock.defaultClock());
+	}
+
+	/**
+	 * @param window Length of the window
+	 * @param unit   {@link TimeUnit} of window
+	 * @param slices Number of sub-intervals the window is split into
+	 * @param clock  {@link Clock}
+	 */
+	public SlidingWindowRateGauge(long window, TimeUnit unit, int slices, Clock clock) {
+		if (slices < 1) {
+			throw new IllegalArgumentException("Must have at least 1 slice");
+		}
+		this.slices = slices;
+		this.sliceNanos = Math.max(1, unit.toNanos(window) / slices);
+		this.clock = clock;
+		// One extra counter for the partially expired oldest slice
+		this.counters = new AtomicLongArray(slices + 1);
+		final long slice = Math.floorDiv(clock.get(), this.sliceNanos) & SLICE_MASK;
+		for (int i = 0; i < this.counters.length(); i++) {
+			// Start every counter out as long expired
+			this.counters.set(i, ((slice - this.slices - 1) & SLICE_MASK) << COUNT_BITS);
+		}
+	}
+
+	@Override
+	public void incr() {
+		this.add(1);
+	}
+
+	/**
+	 * @param count Number of events, from 0 to {@link #MAX_SLICE_COUNT}
+	 * @throws IllegalArgumentException If count is out of range
+	 */
+	@Override
+	public void add(long count) {
+		if (count < 0 || count > MAX_SLICE_COUNT) {
+			throw new IllegalArgumentException("Count must be between 0 and " + MAX_SLICE_COUNT + ": " + count);
+		}
+		final long slice = Math.floorDiv(this.clock.get(), this.sliceNanos);
+		final int idx = (int) Math.floorMod(slice, (long) this.counters.length());
+		final long tag = (slice & SLICE_MASK) << COUNT_BITS;
+		long current;
+		long next;
+		do {
+			current = this.counters.get(idx);
+			next = (current & ~COUNT_MASK) == tag ? tag | Math.min(MAX_SLICE_COUNT, (current & COUNT_MASK) + count)
+					: tag | count;
+		} while (!this.counters.compareAndSet(idx, current, next));
+	}
+
+	@Override
+	public long currentRate() {
+		final long now = this.clock.get();
+		final long slice = Math.floorDiv(now, this.sliceNanos);
+		double sum = 0;
+		for (int i = 0; i < this.counters.length(); i++) {
+			final long v = this.counters.get(i);
+			final long age = (slice - (v >>> COUNT_BITS)) & SLICE_MASK;
+			if (age < this.slices) {
+				sum += v & COUNT_MASK;
+			} else if (age == this.slices) {
+				final double elapsed = (double) Math.floorMod(now, this.sliceNanos) / this.sliceNanos;
+				sum += (v & COUNT_MASK) * (1 - elapsed);
+			}
+		}
+		return Math.round(sum);
+	}
+}
@@ -1,10 +1,16 @@
 package com.nerdynick.queue.blocking.bucket;
 
+import java.util.AbstractCollection;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
 
 import com.google.common.util.concurrent.ForwardingBlockingQueue;
 import com.nerdynick.queue.blocking.bucket.sensor.BucketSensor;
@@ -18,10 +24,53 @@ import com.nerdynick.queue.blocking.bucket.sensor.BucketSensor;
 public class Bucket<K, E> extends ForwardingBlockingQueue<E> {
 	private final BlockingQueue<E> _queue;
 	private final BucketSensor _sensor;
+	/**
+	 * Set while this bucket is queued as ready, or claimed by a consumer.
+	 */
+	private final AtomicBoolean _ready = new AtomicBoolean(false);
 	public final K key;
+	/**
+	 * Relative share of consumption for weighted {@link BucketScheduler}s.
+	 */
+	public final int weight;
+	/**
+	 * Scheduler owned credit. Only touched by whoever currently holds the bucket.
+	 */
+	int deficit;
+	/**
+	 * Tier cached by a {@link PriorityScheduler}, -1 until first scheduled.
+	 */
+	int tier = -1;
+	/**
+	 * {@link com.nerdynick.gauges.Clock} time of the last access through the
+	 * {@link BucketRegistry}, at tick resolution.
+	 */
+	volatile long lastAccess;
+	/**
+	 * Set once the {@link BucketRegistry} no longer hands this bucket out, so
+	 * anything caching it knows to look the key up again.
+	 */
+	volatile boolean retired;
+	/**
+	 * {@link System#nanoTime()} a throttled bucket becomes eligible, guarded by
+	 * {@link ThrottledBuckets}.
+	 */
+	long eligibleAt;
+	/**
+	 * Set right after construction when metrics are enabled, otherwise null.
+	 */
+	BucketMetrics<K, E> metrics;
 
 	public Bucket(final BlockingQueue<E> queue, final BiFunction<K, Bucket<K, E>, BucketSensor> bucketSensor, final K key) {
+		this(queue, bucketSensor, key, 1);
+	}
+
+	public Bucket(final BlockingQueue<E> queue, final BiFunction<K, Bucket<K, E>, BucketSensor> bucketSensor, final K key, final int weight) {
+		if (weight < 1) {
+			throw new IllegalArgumentException("Bucket weight must be at least 1");
+		}
 		this.key = key;
+		this.weight = weight;
 		this._queue = queue;
 		this._sensor = bucketSensor.apply(key, this);
 	}
@@ -33,81 +82,236 @@ public class Bucket<K, E> extends ForwardingBlockingQueue<E> {
 
 	@Override
 	public boolean offer(E o) {
-		if(!this._sensor.canOffer()) {
+		if(this._sensor.tryAcquireOffer(1) == 0) {
+			return false;
+		}
+		if(!super.offer(o)) {
+			this._sensor.releaseOffer(1);
 			return false;
 		}
-		this._sensor.onOffer();
-		return super.offer(o);
+		this.enqueued(1);
+		return true;
 	}
 
 	@Override
 	public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
-		if(!this._sensor.canOfferWait(timeout, unit)) {
+		long remaining = unit.toNanos(timeout);
+		final long deadline = System.nanoTime() + remaining;
+		// Reserve atomically, waiting on the sensor again if another producer got there first
+		while(true) {
+			if(!this._sensor.canOfferWait(remaining, TimeUnit.NANOSECONDS)) {
+				return false;
+			}
+			if(this._sensor.tryAcquireOffer(1) > 0) {
+				break;
+			}
+			remaining = deadline - System.nanoTime();
+			if(remaining <= 0) {
+				return false;
+			}
+		}
+		boolean added = false;
+		try {
+			added = super.offer(e, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+		} finally {
+			if(!added) {
+				this._sensor.releaseOffer(1);
+			}
+		}
+		if(!added) {
 			return false;
 		}
-		this._sensor.onOffer();
-		return super.offer(e, timeout, unit);
+		this.enqueued(1);
+		return true;
 	}
 	
+	/**
+	 * Adds as many elements as the sensor grants, in order, with one sensor call
+	 * for the whole collection.
+	 * 
+	 * @return True if any element was added
+	 */
 	@Override
 	public boolean addAll(Collection<? extends E> c) {
-		if(!this._sensor.canOffer()) {
-			return false;
+		return this.addAllGranted(c) > 0;
+	}
+
+	/**
+	 * {@link #addAll(Collection)} that reports how many elements went in.
+	 * 
+	 * @param c Elements to add
+	 * @return Number of leading elements of c that were added
+	 */
+	int addAllGranted(Collection<? extends E> c) {
+		final long granted = this._sensor.tryAcquireOffer(c.size());
+		int added = 0;
+		for (E e : c) {
+			if (added == granted || !this._queue.offer(e)) {
+				break;
+			}
+			added++;
+		}
+		if (added < granted) {
+			this._sensor.releaseOffer(granted - added);
+		}
+		if (added > 0) {
+			this.enqueued(added);
 		}
-		this._sensor.onOffer(c.size());
-		return super.addAll(c);
+		return added;
 	}
 
 	@Override
 	public boolean add(E o) {
-		if(!this._sensor.canOffer()) {
+		if(this._sensor.tryAcquireOffer(1) == 0) {
 			throw new IllegalStateException("Bucket Sensor has blocked the add");
 		}
-		this._sensor.onOffer();
-		return super.add(o);
+		if(!super.offer(o)) {
+			this._sensor.releaseOffer(1);
+			throw new IllegalStateException("Queue full");
+		}
+		this.enqueued(1);
+		return true;
 	}
 
 	@Override
 	public void put(E e) throws InterruptedException {
-		if(!this._sensor.canOfferWait()) {
-			return;
+		this.tryPut(e);
+	}
+
+	/**
+	 * {@link #put(Object)} that reports whether the sensor let the element in.
+	 * 
+	 * @param e Element
+	 * @return False if the sensor blocked the put
+	 * @throws InterruptedException
+	 */
+	boolean tryPut(E e) throws InterruptedException {
+		// Reserve atomically, waiting on the sensor again if another producer got there first
+		do {
+			if(!this._sensor.canOfferWait()) {
+				return false;
+			}
+		} while(this._sensor.tryAcquireOffer(1) == 0);
+		boolean added = false;
+		try {
+			super.put(e);
+			added = true;
+		} finally {
+			if(!added) {
+				this._sensor.releaseOffer(1);
+			}
 		}
-		this._sensor.onOffer();
-		super.put(e);
+		this.enqueued(1);
+		return true;
 	}
 
 	@Override
 	public boolean remove(Object o) {
-		this._sensor.onTake();
-		return super.remove(o);
+		if(!super.remove(o)) {
+			return false;
+		}
+		this._sensor.onRemove(1);
+		if(this.metrics != null) {
+			this.metrics.removed(1);
+		}
+		return true;
 	}
 
 	@Override
 	public E remove() {
+		final E e = super.remove();
 		this._sensor.onTake();
-		return super.remove();
+		this.dequeued(1);
+		return e;
 	}
 
 	@Override
 	public E poll() {
-		this._sensor.onTake();
-		return super.poll();
+		final E e = super.poll();
+		if(e != null) {
+			this._sensor.onTake();
+			this.dequeued(1);
+		}
+		return e;
 	}
 
 	@Override
 	public E poll(long timeout, TimeUnit unit) throws InterruptedException {
-		this._sensor.onTake();
-		return super.poll(timeout, unit);
+		final E e = super.poll(timeout, unit);
+		if(e != null) {
+			this._sensor.onTake();
+			this.dequeued(1);
+		}
+		return e;
 	}
 
+	/**
+	 * Drains as many elements as the sensor grants, with one sensor call for the
+	 * whole batch.
+	 */
 	@Override
 	public int drainTo(Collection<? super E> c, int maxElements) {
-		throw new RuntimeException("Not Implemented");
+		return this.drainCounted(new Drained<E>(c, null), maxElements);
+	}
+
+	/**
+	 * {@link #drainTo(Collection, int)} counting each element as it reaches the
+	 * target, so a target that throws leaves the rest queued with the sensor and
+	 * metrics still matching what moved.
+	 * 
+	 * @param target      Counting target to drain to
+	 * @param maxElements Max elements to drain
+	 * @return Number of elements drained
+	 */
+	int drainCounted(final Drained<E> target, final int maxElements) {
+		final int wanted = Math.min(maxElements, this._queue.size());
+		if(wanted <= 0) {
+			return 0;
+		}
+		final int granted = (int) this._sensor.tryAcquireTake(wanted);
+		if(granted == 0) {
+			return 0;
+		}
+		final int before = target.count;
+		int drained = 0;
+		try {
+			super.drainTo(target, granted);
+		} finally {
+			drained = target.count - before;
+			if(drained < granted) {
+				this._sensor.releaseTake(granted - drained);
+			}
+			if(drained > 0) {
+				this.dequeued(drained);
+			}
+		}
+		return drained;
 	}
 
 	@Override
 	public int drainTo(Collection<? super E> c) {
-		throw new RuntimeException("Not Implemented");
+		return this.drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public boolean removeIf(Predicate<? super E> filter) {
+		// Let the queue remove in one pass, counting what it removed
+		final int[] count = { 0 };
+		this._queue.removeIf(e -> {
+			if (filter.test(e)) {
+				count[0]++;
+				return true;
+			}
+			return false;
+		});
+		final int removed = count[0];
+		if (removed > 0) {
+			this._sensor.onRemove(removed);
+			if (this.metrics != null) {
+				this.metrics.removed(removed);
+			}
+		}
+		return removed > 0;
 	}
 
 	public boolean canTake() {
@@ -118,4 +322,116 @@ public class Bucket<K, E> extends ForwardingBlockingQueue<E> {
 		return this._sensor.canOffer();
 	}
 
+	/**
+	 * @return Nanoseconds until the sensor will allow a take, 0 when allowed now
+	 *         or unknown
+	 */
+	public long takeDelayNanos() {
+		return this._sensor.takeDelayNanos();
+	}
+
+	/**
+	 * Removes every element, bypassing the {@link BucketSensor}.
+	 * 
+	 * @param spill {@link Consumer} handed each removed element, or null to
+	 *              discard them
+	 * @return Number of elements removed
+	 */
+	int drainAll(final Consumer<? super E> spill) {
+		int count = 0;
+		E e;
+		while ((e = this._queue.poll()) != null) {
+			if (spill != null) {
+				spill.accept(e);
+			}
+			count++;
+		}
+		if (count > 0) {
+			this._sensor.onRemove(count);
+			if (this.metrics != null) {
+				this.metrics.removed(count);
+			}
+		}
+		return count;
+	}
+
+	private void enqueued(final int count) {
+		if (this.metrics != null) {
+			this.metrics.enqueued(count);
+		}
+	}
+
+	private void dequeued(final int count) {
+		if (this.metrics != null) {
+			this.metrics.dequeued(count);
+		}
+	}
+
+	/**
+	 * Drain target passing each element on to the real target, counting and
+	 * optionally weighing the elements that made it.
+	 * 
+	 * @param <E> Type of Elements being drained
+	 */
+	static final class Drained<E> extends AbstractCollection<E> {
+		private final Collection<? super E> target;
+		private final ToLongFunction<? super E> weigher;
+		int count;
+		long weight;
+
+		/**
+		 * @param target  Collection the elements go to
+		 * @param weigher {@link ToLongFunction} weighing each element, or null
+		 */
+		Drained(final Collection<? super E> target, final ToLongFunction<? super E> weigher) {
+			this.target = target;
+			this.weigher = weigher;
+		}
+
+		@Override
+		public boolean add(final E e) {
+			final long w = this.weigher == null ? 0 : this.weigher.applyAsLong(e);
+			this.target.add(e);
+			this.weight += w;
+			this.count++;
+			return true;
+		}
+
+		@Override
+		public Iterator<E> iterator() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public int size() {
+			return this.count;
+		}
+	}
+
+	/**
+	 * Flags this bucket as ready for consumption.
+	 * 
+	 * @return True if the caller won the empty to non-empty transition and
+	 *         should queue the bucket
+	 */
+	boolean markReady() {
+		return !this._ready.get() && this._ready.compareAndSet(false, true);
+	}
+
+	/**
+	 * @return True from the add that scheduled this bucket until a consumer
+	 *         hands it back empty, covering scheduled, claimed, leased and
+	 *         throttled buckets
+	 */
+	boolean isReady() {
+		return this._ready.get();
+	}
+
+	/**
+	 * Clears the ready flag once a consumer found the bucket empty.
+	 */
+	void clearReady() {
+		this._ready.set(false);
+	}
+
 }
\ No newline at end of file
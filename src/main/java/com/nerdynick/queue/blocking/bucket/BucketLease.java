@@ -0,0 +1,114 @@
+package com.nerdynick.queue.blocking.bucket;
+
+import java.util.Collection;
+
+/**
+ * Exclusive claim on one key's bucket, from
+ * {@link BucketedBlockingQueue#lease()}. While a lease is open no other
+ * consumer can take from the key, so its elements are processed in order,
+ * while other consumers carry on with other keys.
+ * <p>
+ * A lease takes at most the scheduler's quantum of elements, then has to be
+ * closed to hand the bucket back, letting the other keys have their turn. Not
+ * thread safe, it belongs to the consumer holding it.
+ * 
+ * <pre>
+ * try (BucketLease&lt;K, E&gt; lease = queue.lease()) {
+ * 	E e;
+ * 	while ((e = lease.poll()) != null) {
+ * 		process(e);
+ * 	}
+ * }
+ * </pre>
+ * 
+ * @author Nikoleta Verbeck
+ *
+ * @param <K> Type of the Bucketing Key
+ * @param <E> Type of Elements being stored in the bucketed queues
+ */
+public final class BucketLease<K, E> implements AutoCloseable {
+	private final BucketedBlockingQueue<K, E> queue;
+	private final Bucket<K, E> bucket;
+	private final int quantum;
+	private int taken;
+	private boolean closed;
+
+	BucketLease(final BucketedBlockingQueue<K, E> queue, final Bucket<K, E> bucket, final int quantum) {
+		this.queue = queue;
+		this.bucket = bucket;
+		this.quantum = quantum;
+	}
+
+	/**
+	 * @return Bucketing key this lease holds
+	 */
+	public K key() {
+		return this.bucket.key;
+	}
+
+	/**
+	 * @return Elements that can still be taken before the lease must be closed
+	 */
+	public int remaining() {
+		return this.quantum - this.taken;
+	}
+
+	/**
+	 * @return Next element of the key, or null once the bucket is empty, the
+	 *         quantum is used up or the bucket's sensor refuses the take
+	 */
+	public E poll() {
+		this.checkOpen();
+		if (this.taken >= this.quantum || !this.bucket.canTake()) {
+			return null;
+		}
+		final E e = this.queue.pollLeased(this.bucket);
+		if (e != null) {
+			this.taken++;
+		}
+		return e;
+	}
+
+	/**
+	 * Drains the key's elements, up to the remaining quantum.
+	 * 
+	 * @param c Collection to drain to
+	 * @return Number of elements drained
+	 */
+	public int drainTo(final Collection<? super E> c) {
+		return this.drainTo(c, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @param c           Collection to drain to
+	 * @param maxElements Max elements to drain
+	 * @return Number of elements drained
+	 */
+	public int drainTo(final Collection<? super E> c, final int maxElements) {
+		this.checkOpen();
+		final int max = Math.min(maxElements, this.remaining());
+		if (max <= 0) {
+			return 0;
+		}
+		final int n = this.queue.drainLeased(this.bucket, c, max);
+		this.taken += n;
+		return n;
+	}
+
+	/**
+	 * Hands the bucket back to the queue. Safe to call more than once.
+	 */
+	@Override
+	public void close() {
+		if (!this.closed) {
+			this.closed = true;
+			this.queue.releaseBucket(this.bucket, this.taken);
+		}
+	}
+
+	private void checkOpen() {
+		if (this.closed) {
+			throw new IllegalStateException("Lease already closed");
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package com.nerdynick.queue.blocking.bucket;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.nerdynick.gauges.Clock;
+import com.nerdynick.gauges.LatencyHistogram;
+import com.nerdynick.gauges.RateMeter;
+import com.nerdynick.gauges.SlidingWindowRateGauge;
+
+/**
+ * Metrics for a single {@link Bucket}, only kept when enabled on the
+ * {@link BucketedBlockingQueue.Builder}. Every read is lock free.
+ * <p>
+ * Enqueue times are kept in a ring alongside the bucket, in arrival order, so
+ * each take can record how long its element waited. Each slot is tagged with
+ * its sequence number. A slot that was overwritten because the bucket held more
+ * than {@value #STAMPS} elements, or that isn't written yet, drops its sample
+ * rather than recording a wrong latency. Elements removed from the middle of a
+ * bucket shift the pairing, so latencies are approximate in that case.
+ * 
+ * @author Nikoleta Verbeck
+ *
+ * @param <K> Type of the Bucketing Key
+ * @param <E> Type of Elements being stored in the bucketed queues
+ */
+public final class BucketMetrics<K, E> {
+	private static final int STAMPS = 128;
+
+	private final Bucket<K, E> bucket;
+	private final Clock clock;
+	private final LatencyHistogram latency;
+	private final RateMeter enqueueRate;
+	private final RateMeter dequeueRate;
+	private final AtomicLongArray stamps = new AtomicLongArray(STAMPS);
+	private final AtomicLongArray sequences = new AtomicLongArray(STAMPS);
+	/**
+	 * Elements enqueued, including any the queue already held.
+	 */
+	private final AtomicLong tail = new AtomicLong();
+	/**
+	 * Elements dequeued or removed.
+	 */
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong throttledNanos = new AtomicLong();
+	/**
+	 * {@link System#nanoTime()} the bucket was parked as throttled, guarded by
+	 * {@link ThrottledBuckets}.
+	 */
+	private long throttledAt;
+	private volatile boolean throttled;
+
+	BucketMetrics(final Bucket<K, E> bucket, final LatencyHistogram latency, final Clock clock) {
+		this.bucket = bucket;
+		this.clock = clock;
+		this.latency = latency;
+		this.enqueueRate = new SlidingWindowRateGauge(1, TimeUnit.SECONDS, 10, clock);
+		this.dequeueRate = new SlidingWindowRateGauge(1, TimeUnit.SECONDS, 10, clock);
+		for (int i = 0; i < STAMPS; i++) {
+			this.sequences.set(i, -1);
+		}
+		// Recovered elements, with no enqueue time to sample
+		this.tail.set(bucket.size());
+	}
+
+	void enqueued(final long count) {
+		this.enqueueRate.add(count);
+		final long now = this.clock.get();
+		final long from = this.tail.getAndAdd(count);
+		for (long seq = Math.max(from, from + count - STAMPS); seq < from + count; seq++) {
+			final int slot = (int) (seq & (STAMPS - 1));
+			this.stamps.set(slot, now);
+			this.sequences.lazySet(slot, seq);
+		}
+	}
+
+	void dequeued(final long count) {
+		this.dequeueRate.add(count);
+		final long now = this.clock.get();
+		final long from = this.head.getAndAdd(count);
+		for (long seq = Math.max(from, from + count - STAMPS); seq < from + count; seq++) {
+			final int slot = (int) (seq & (STAMPS - 1));
+			if (this.sequences.get(slot) == seq) {
+				this.latency.record(now - this.stamps.get(slot));
+			}
+		}
+	}
+
+	/**
+	 * Elements that left without being taken.
+	 */
+	void removed(final long count) {
+		this.head.getAndAdd(count);
+	}
+
+	void throttled(final long now) {
+		this.throttledAt = now;
+		this.throttled = true;
+	}
+
+	void unthrottled(final long now) {
+		this.throttled = false;
+		this.throttledNanos.addAndGet(now - this.throttledAt);
+	}
+
+	public K key() {
+		return this.bucket.key;
+	}
+
+	/**
+	 * @return Elements currently in the bucket, from the enqueue and dequeue
+	 *         counts so the bucket's queue isn't locked
+	 */
+	public int depth() {
+		// Head first, so traffic between the two reads can only overstate the depth
+		final long head = this.head.get();
+		return (int) Math.min(Integer.MAX_VALUE, Math.max(0, this.tail.get() - head));
+	}
+
+	/**
+	 * @return Elements enqueued over the last second
+	 */
+	public long enqueueRate() {
+		return this.enqueueRate.currentRate();
+	}
+
+	/**
+	 * @return Elements taken over the last second
+	 */
+	public long dequeueRate() {
+		return this.dequeueRate.currentRate();
+	}
+
+	/**
+	 * @return True while the bucket's sensor is refusing takes
+	 */
+	public boolean isThrottled() {
+		return this.throttled;
+	}
+
+	/**
+	 * @return Total nanoseconds the bucket has spent throttled, not counting a
+	 *         throttle still in progress
+	 */
+	public long throttledNanos() {
+		return this.throttledNanos.get();
+	}
+}
@@ -0,0 +1,170 @@
+package com.nerdynick.queue.blocking.bucket;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import com.nerdynick.gauges.Clock;
+
+/**
+ * Key to {@link Bucket} lookup for a {@link BucketedBlockingQueue}, with
+ * optional expiry of buckets that haven't been accessed for a while.
+ * <p>
+ * Lookups of existing buckets are a single {@link ConcurrentHashMap#get} plus,
+ * when expiry is on, a clock read and an occasional volatile write of the
+ * bucket's access time. Idle buckets are found with a {@link TimingWheel} that
+ * is advanced by whichever caller finds it due, so expiry costs O(1) per bucket
+ * and needs no background thread.
+ * 
+ * @author Nikoleta Verbeck
+ *
+ * @param <K> Type of the Bucketing Key
+ * @param <E> Type of Elements being stored in the bucketed queues
+ */
+final class BucketRegistry<K, E> {
+	private static final int WHEEL_SLOTS = 64;
+
+	private final ConcurrentHashMap<K, Bucket<K, E>> buckets = new ConcurrentHashMap<K, Bucket<K, E>>();
+	private final Function<K, Bucket<K, E>> loader;
+	private final Function<K, Bucket<K, E>> create = this::create;
+	private final Clock clock;
+	private final long expireNanos;
+
+	private final ReentrantLock wheelLock = new ReentrantLock();
+	private final TimingWheel<Bucket<K, E>> wheel;
+	private final Consumer<Bucket<K, E>> expireCheck = this::expireCheck;
+	/**
+	 * Buckets created since the wheel last advanced. Creation happens inside the
+	 * map's compute, so buckets are handed to the wheel lock-free.
+	 */
+	private final ConcurrentLinkedQueue<Bucket<K, E>> created = new ConcurrentLinkedQueue<Bucket<K, E>>();
+	private volatile long nextAdvance;
+	private long now;
+
+	/**
+	 * @param loader      {@link Function} creating the bucket for a new key
+	 * @param expireNanos Nanoseconds since last access after which a bucket is
+	 *                    removed, once it is also empty and not scheduled. 0 or
+	 *                    less disables expiry.
+	 * @param clock       {@link Clock} used for access times
+	 */
+	BucketRegistry(final Function<K, Bucket<K, E>> loader, final long expireNanos, final Clock clock) {
+		this.loader = loader;
+		this.clock = clock;
+		this.expireNanos = expireNanos;
+		if (expireNanos > 0) {
+			final long now = clock.get();
+			this.wheel = new TimingWheel<Bucket<K, E>>(Math.max(1, expireNanos / (WHEEL_SLOTS / 2)), WHEEL_SLOTS, now);
+			this.nextAdvance = this.wheel.nextTickTime();
+		} else {
+			this.wheel = null;
+		}
+	}
+
+	private Bucket<K, E> create(final K key) {
+		final Bucket<K, E> b = this.loader.apply(key);
+		if (this.wheel != null) {
+			b.lastAccess = this.clock.get();
+			this.created.offer(b);
+		}
+		return b;
+	}
+
+	/**
+	 * Gets or creates the bucket for a key, counting as an access.
+	 * 
+	 * @param key Bucketing key
+	 * @return Bucket for the key
+	 */
+	Bucket<K, E> get(final K key) {
+		Bucket<K, E> b = this.buckets.get(key);
+		if (b == null) {
+			b = this.buckets.computeIfAbsent(key, this.create);
+		}
+		this.touch(b);
+		return b;
+	}
+
+	/**
+	 * Counts as an access of a bucket found without {@link #get(Object)}.
+	 * 
+	 * @param b Bucket
+	 */
+	void touch(final Bucket<K, E> b) {
+		if (this.wheel != null) {
+			final long now = this.clock.get();
+			// Access times only need tick resolution, skip the write otherwise
+			if (now - b.lastAccess >= this.wheel.tickNanos()) {
+				b.lastAccess = now;
+			}
+			this.expire(now);
+		}
+	}
+
+	/**
+	 * @param key Bucketing key
+	 * @return Bucket for the key or null, without counting as an access
+	 */
+	Bucket<K, E> getIfPresent(final K key) {
+		return this.buckets.get(key);
+	}
+
+	/**
+	 * @param key Bucketing key
+	 * @return Removed bucket or null
+	 */
+	Bucket<K, E> remove(final K key) {
+		final Bucket<K, E> b = this.buckets.remove(key);
+		if (b != null) {
+			b.retired = true;
+		}
+		return b;
+	}
+
+	/**
+	 * @return Live view of all buckets
+	 */
+	Collection<Bucket<K, E>> values() {
+		return this.buckets.values();
+	}
+
+	/**
+	 * Advances the expiry wheel if a tick is due and no other thread is already
+	 * doing so.
+	 * 
+	 * @param now Current {@link Clock} time
+	 */
+	private void expire(final long now) {
+		if (now - this.nextAdvance < 0 || !this.wheelLock.tryLock()) {
+			return;
+		}
+		try {
+			this.now = now;
+			Bucket<K, E> b;
+			while ((b = this.created.poll()) != null) {
+				this.wheel.schedule(b, b.lastAccess + this.expireNanos);
+			}
+			this.wheel.advance(now, this.expireCheck);
+			this.nextAdvance = this.wheel.nextTickTime();
+		} finally {
+			this.wheelLock.unlock();
+		}
+	}
+
+	private void expireCheck(final Bucket<K, E> b) {
+		final long deadline = b.lastAccess + this.expireNanos;
+		if (deadline - this.now > 0) {
+			this.wheel.schedule(b, deadline);
+		} else if (b.isReady() || !b.isEmpty()) {
+			// Idle but still scheduled, claimed or holding elements, look again in
+			// another expiry period. Replacing a ready bucket would let a second
+			// consumer take the same key while the first still holds it.
+			this.wheel.schedule(b, this.now + this.expireNanos);
+		} else if (this.buckets.remove(b.key, b)) {
+			b.retired = true;
+		}
+	}
+}
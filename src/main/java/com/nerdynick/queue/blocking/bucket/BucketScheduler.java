@@ -0,0 +1,63 @@
+package com.nerdynick.queue.blocking.bucket;
+
+/**
+ * Decides the order ready {@link Bucket}s are served in by a
+ * {@link BucketedBlockingQueue}.
+ * <p>
+ * The queue guarantees a bucket is only ever held by the scheduler or by one
+ * consumer at a time. A bucket returned from {@link #next()} is handed back
+ * through exactly one of {@link #requeue(Bucket, int)},
+ * {@link #restore(Bucket)} or {@link #idle(Bucket)}. Implementations must be
+ * thread safe, and a scheduler instance belongs to a single queue.
+ * 
+ * @author Nikoleta Verbeck
+ *
+ * @param <K> Type of the Bucketing Key
+ * @param <E> Type of Elements being stored in the bucketed queues
+ */
+public interface BucketScheduler<K, E> {
+	/**
+	 * Adds a bucket that has just gone from empty to non-empty.
+	 * 
+	 * @param bucket Ready bucket
+	 */
+	public void add(Bucket<K, E> bucket);
+
+	/**
+	 * Removes and returns the next bucket to serve.
+	 * 
+	 * @return Next bucket or null when none are scheduled
+	 */
+	public Bucket<K, E> next();
+
+	/**
+	 * @param bucket Bucket returned by {@link #next()}
+	 * @return How many elements a consumer may take from the bucket on this
+	 *         visit
+	 */
+	public int quantum(Bucket<K, E> bucket);
+
+	/**
+	 * Hands back a bucket that still has elements.
+	 * 
+	 * @param bucket Bucket returned by {@link #next()}
+	 * @param taken  Elements taken on this visit. 0 when the bucket was skipped,
+	 *               for example because its sensor refused the take.
+	 */
+	public void requeue(Bucket<K, E> bucket, int taken);
+
+	/**
+	 * Hands back a bucket untouched, keeping its place in the schedule. Used after
+	 * a peek.
+	 * 
+	 * @param bucket Bucket returned by {@link #next()}
+	 */
+	public void restore(Bucket<K, E> bucket);
+
+	/**
+	 * Notifies that a bucket was found empty and has left the schedule.
+	 * 
+	 * @param bucket Bucket returned by {@link #next()}
+	 */
+	public void idle(Bucket<K, E> bucket);
+}
@@ -1,35 +1,42 @@
 package com.nerdynick.queue.blocking.bucket;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.Lock;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.BiFunction;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
-import com.google.common.cache.RemovalListener;
-import com.google.common.cache.RemovalNotification;
+import com.nerdynick.gauges.Clock;
 import com.nerdynick.queue.blocking.bucket.sensor.BucketSensor;
+import com.nerdynick.queue.blocking.bucket.sensor.NullSensor;
 
 /**
  * A {@link BlockingQueue} Implementation that queues items into buckets based on
  * a supplied {@link Function} return value.
+ * <p>
+ * Consumers never share a lock. Taking from the queue claims the next ready
+ * {@link Bucket} by removing it from the ready queue, so concurrent consumers
+ * always work on different buckets and only meet on the ready queue itself.
  * 
  * @author Nikoleta Verbeck
  *
@@ -39,17 +46,64 @@ import com.nerdynick.queue.blocking.bucket.sensor.BucketSensor;
 public class BucketedBlockingQueue<K, E> implements BlockingQueue<E> {
 	private static final Logger LOG = LoggerFactory.getLogger(BucketedBlockingQueue.class);
 
-	private final Supplier<BlockingQueue<E>> queueSupplier;
+	private final Function<? super K, ? extends BlockingQueue<E>> queueFactory;
 	private final BiFunction<K, Bucket<K, E>, BucketSensor> bucketSensor;
 	private final Function<E, K> keySupplier;
+	private final ToIntFunction<K> bucketWeight;
 
-	private final LoadingCache<K, Bucket<K, E>> bucketsByKey;
-	private final List<Bucket<K, E>> allBuckets = new LinkedList<Bucket<K,E>>();
-	private final AtomicInteger tick = new AtomicInteger(Integer.MIN_VALUE);
-	private final Lock lock = new ReentrantLock();
+	private final BucketRegistry<K, E> buckets;
+	/**
+	 * Queue wide capacity bound, null when unbounded.
+	 */
+	private final CapacityLimiter<E> capacity;
+	/**
+	 * Null when metrics aren't enabled.
+	 */
+	private final QueueMetrics<K, E> metrics;
+	/**
+	 * Each producer thread's last bucket, null when the cache isn't enabled.
+	 */
+	private final ThreadLocal<HotBucket<K, E>> hotBucket;
+	/**
+	 * Cache hits between going through the registry anyway, keeping the cached
+	 * bucket's access time fresh enough that it isn't expired while hot.
+	 */
+	private static final int HOT_BUCKET_REFRESH = 256;
+	private final Clock clock;
+	/**
+	 * Orders the buckets that have elements. A bucket is added by the producer
+	 * that moves it from empty to non-empty and is handed back by the consumer
+	 * that took from it.
+	 */
+	private final BucketScheduler<K, E> scheduler;
+	private final AtomicInteger readyCount = new AtomicInteger();
+	/**
+	 * Elements in the queue, updated by the enqueued and dequeued hooks. A take
+	 * can be counted before its put, so it may briefly read negative.
+	 */
+	private final LongAdder size = new LongAdder();
+
+	/**
+	 * How long a bucket is parked when its sensor refuses a take without saying
+	 * for how long.
+	 */
+	private static final long THROTTLED_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	/**
+	 * Buckets pulled out of the schedule while their sensor refuses takes. They
+	 * stay flagged ready and count towards {@link #readyCount}.
+	 */
+	private final ThrottledBuckets<K, E> throttled = new ThrottledBuckets<K, E>();
+	private final Consumer<Bucket<K, E>> unthrottle;
+	/**
+	 * Consumers park on {@link #notEmpty}. Producers only take the lock to signal
+	 * when {@link #waiting} shows a parked consumer.
+	 */
+	private final ReentrantLock waitLock = new ReentrantLock();
+	private final Condition notEmpty = waitLock.newCondition();
+	private final AtomicInteger waiting = new AtomicInteger();
 
 	private class BucketIterator implements Iterator<E> {
-		final Iterator<Bucket<K, E>> bIter = allBuckets.iterator();
+		final Iterator<Bucket<K, E>> bIter = buckets.values().iterator();
 		Iterator<E> currentIter;
 
 		public boolean hasNext() {
@@ -87,7 +141,7 @@ public class BucketedBlockingQueue<K, E> implements BlockingQueue<E> {
 	 */
 	public static <E> Supplier<BlockingQueue<E>> DefaultQueue(int limit) {
 		return () -> {
-			return new LinkedBlockingDeque<>(limit);
+			return new RingBufferBlockingQueue<>(limit);
 		};
 	}
 
@@ -99,6 +153,34 @@ public class BucketedBlockingQueue<K, E> implements BlockingQueue<E> {
 	 * @return Supplier
 	 */
 	public static <E> Supplier<BlockingQueue<E>> DefaultQueue() {
+		return () -> {
+			return new RingBufferBlockingQueue<>();
+		};
+	}
+
+	/**
+	 * {@link Supplier} for supplying a Bounded {@link LinkedBlockingDeque} during
+	 * {@link Bucket} creation, for buckets with heavy concurrent producers and
+	 * consumers on the same key.
+	 * 
+	 * @param <E>   Element types stored in the BlockingQueue
+	 * @param limit Bounding limit for the BlockingQueue
+	 * @return Supplier
+	 */
+	public static <E> Supplier<BlockingQueue<E>> LinkedQueue(int limit) {
+		return () -> {
+			return new LinkedBlockingDeque<>(limit);
+		};
+	}
+
+	/**
+	 * {@link Supplier} for supplying a Unbounded {@link LinkedBlockingDeque}
+	 * during {@link Bucket} creation.
+	 * 
+	 * @param <E> Element types stored in the BlockingQueue
+	 * @return Supplier
+	 */
+	public static <E> Supplier<BlockingQueue<E>> LinkedQueue() {
 		return () -> {
 			return new LinkedBlockingDeque<>();
 		};
@@ -118,6 +200,200 @@ public class BucketedBlockingQueue<K, E> implements BlockingQueue<E> {
 		this(keySupplier, DefaultQueue(queueLimit), bucketSensor, expireTime, expireUnit);
 	}
 
+	/**
+	 * Builder for a {@link BucketedBlockingQueue}, for when the convenience
+	 * constructors don't cover the needed options.
+	 * 
+	 * @param <K> Type of the Bucketing Key
+	 * @param <E> Type of Elements being stored in the bucketed queues
+	 */
+	public static class Builder<K, E> {
+		private final Function<E, K> keySupplier;
+		private Function<? super K, ? extends BlockingQueue<E>> queueFactory = k -> new RingBufferBlockingQueue<E>();
+		private Iterable<? extends K> preload;
+		private BiFunction<K, Bucket<K, E>, BucketSensor> bucketSensor = (k, b) -> NullSensor.instance();
+		private long expireTime = -1;
+		private TimeUnit expireUnit = TimeUnit.MILLISECONDS;
+		private ToIntFunction<K> bucketWeight = k -> 1;
+		private int drainQuantum = 64;
+		private BucketScheduler<K, E> scheduler;
+		private Clock clock = Clock.defaultClock();
+		private boolean metrics = false;
+		private boolean hotKeyCache = false;
+		private long maxElements = -1;
+		private long maxWeight = -1;
+		private ToLongFunction<? super E> weigher;
+
+		protected Builder(final Function<E, K> keySupplier) {
+			this.keySupplier = keySupplier;
+		}
+
+		/**
+		 * @param queueSupplier {@link Supplier} to provde a new, dedicated,
+		 *                      {@link BlockingQueue} for each new {@link Bucket}
+		 * @return this
+		 */
+		public Builder<K, E> queueSupplier(final Supplier<BlockingQueue<E>> queueSupplier) {
+			this.queueFactory = k -> queueSupplier.get();
+			return this;
+		}
+
+		/**
+		 * Key aware alternative to {@link #queueSupplier(Supplier)}, for queues
+		 * tied to their key such as durable per key storage. Asked again for a
+		 * key whose bucket was removed or expired.
+		 * 
+		 * @param queueFactory {@link Function} to provide the {@link BlockingQueue}
+		 *                     for each new {@link Bucket} given its key
+		 * @return this
+		 */
+		public Builder<K, E> queueFactory(final Function<? super K, ? extends BlockingQueue<E>> queueFactory) {
+			this.queueFactory = queueFactory;
+			return this;
+		}
+
+		/**
+		 * @param preload Keys whose {@link #queueFactory(Function)} queues already
+		 *                hold elements, e.g. recovered from durable storage.
+		 *                Their buckets are created, counted and scheduled when the
+		 *                queue is built. Recovered elements count towards the
+		 *                capacity bounds even when they exceed them.
+		 * @return this
+		 */
+		public Builder<K, E> preload(final Iterable<? extends K> preload) {
+			this.preload = preload;
+			return this;
+		}
+
+		/**
+		 * @param bucketSensor {@link BiFunction} to provide a {@link BucketSensor}
+		 *                     for each new {@link Bucket}
+		 * @return this
+		 */
+		public Builder<K, E> bucketSensor(final BiFunction<K, Bucket<K, E>, BucketSensor> bucketSensor) {
+			this.bucketSensor = bucketSensor;
+			return this;
+		}
+
+		/**
+		 * @param bucketWeight {@link ToIntFunction} to provide the
+		 *                     {@link Bucket#weight} for each new {@link Bucket}
+		 * @return this
+		 */
+		public Builder<K, E> bucketWeight(final ToIntFunction<K> bucketWeight) {
+			this.bucketWeight = bucketWeight;
+			return this;
+		}
+
+		/**
+		 * @param expireTime Time to expire and remove a bucket after it's last
+		 *                   access. Buckets still holding elements, waiting to
+		 *                   be taken from or held by a consumer or
+		 *                   {@link BucketLease} are kept until handed back
+		 *                   empty, so expiry never drops queued elements.
+		 * @param expireUnit {@link TimeUnit} for expire time
+		 * @return this
+		 */
+		public Builder<K, E> expireAfterAccess(final long expireTime, final TimeUnit expireUnit) {
+			this.expireTime = expireTime;
+			this.expireUnit = expireUnit;
+			return this;
+		}
+
+		/**
+		 * @param drainQuantum Max elements a drainTo takes from one bucket before
+		 *                     moving on to the next, when using the default
+		 *                     {@link RoundRobinScheduler}
+		 * @return this
+		 */
+		public Builder<K, E> drainQuantum(final int drainQuantum) {
+			if (drainQuantum < 1) {
+				throw new IllegalArgumentException("Drain quantum must be at least 1");
+			}
+			this.drainQuantum = drainQuantum;
+			return this;
+		}
+
+		/**
+		 * @param scheduler {@link BucketScheduler} deciding the order buckets are
+		 *                  served in. Defaults to a {@link RoundRobinScheduler}.
+		 * @return this
+		 */
+		public Builder<K, E> scheduler(final BucketScheduler<K, E> scheduler) {
+			this.scheduler = scheduler;
+			return this;
+		}
+
+		/**
+		 * @param maxElements Max elements across all buckets. put blocks, offer
+		 *                    fails and add throws while the queue is full.
+		 * @return this
+		 */
+		public Builder<K, E> maxElements(final long maxElements) {
+			this.maxElements = maxElements;
+			return this;
+		}
+
+		/**
+		 * @param maxWeight Max total weight across all buckets
+		 * @param weigher   {@link ToLongFunction} giving an element's weight, e.g.
+		 *                  its estimated size in bytes. Must return the same
+		 *                  weight for an element every time.
+		 * @return this
+		 */
+		public Builder<K, E> maxWeight(final long maxWeight, final ToLongFunction<? super E> weigher) {
+			this.maxWeight = maxWeight;
+			this.weigher = weigher;
+			return this;
+		}
+
+		/**
+		 * @param clock {@link Clock} used for bucket expiry and metrics
+		 * @return this
+		 */
+		public Builder<K, E> clock(final Clock clock) {
+			this.clock = clock;
+			return this;
+		}
+
+		/**
+		 * @param metrics Keep per bucket rates and depth, throttled time and a
+		 *                queue wide latency histogram, read through
+		 *                {@link BucketedBlockingQueue#metrics()}. Off by default.
+		 * @return this
+		 */
+		public Builder<K, E> metrics(final boolean metrics) {
+			this.metrics = metrics;
+			return this;
+		}
+
+		/**
+		 * @param hotKeyCache Have each producer thread remember the last bucket it
+		 *                    added to, skipping the registry while it keeps adding
+		 *                    the same key. Off by default.
+		 * @return this
+		 */
+		public Builder<K, E> hotKeyCache(final boolean hotKeyCache) {
+			this.hotKeyCache = hotKeyCache;
+			return this;
+		}
+
+		public BucketedBlockingQueue<K, E> build() {
+			return new BucketedBlockingQueue<K, E>(this);
+		}
+	}
+
+	/**
+	 * @param <K>         Type of the Bucketing Key
+	 * @param <E>         Type of Elements being stored in the bucketed queues
+	 * @param keySupplier {@link Function} to provide the bucketing key given the
+	 *                    element being inserted
+	 * @return New {@link Builder}
+	 */
+	public static <K, E> Builder<K, E> builder(final Function<E, K> keySupplier) {
+		return new Builder<K, E>(keySupplier);
+	}
+
 	/**
 	 * 
 	 * @param keySupplier   {@link Function} to provide the bucketing key given the
@@ -135,51 +411,153 @@ public class BucketedBlockingQueue<K, E> implements BlockingQueue<E> {
 			final Supplier<BlockingQueue<E>> queueSupplier,
 			final BiFunction<K, Bucket<K, E>, BucketSensor> bucketSensor, 
 			final long expireTime, final TimeUnit expireUnit) {
-		this.keySupplier = keySupplier;
-		this.queueSupplier = queueSupplier;
-		this.bucketSensor = bucketSensor;
-
-		this.bucketsByKey = CacheBuilder.newBuilder()
-				.initialCapacity(10)
-				.expireAfterAccess(expireTime, expireUnit)
-				.removalListener(new RemovalListener<K, Bucket<K, E>>() {
-					@Override
-					public void onRemoval(RemovalNotification<K, Bucket<K,E>> notification) {
-						BucketedBlockingQueue.this.allBuckets.remove(notification.getValue());
-					}
-				}).build(new CacheLoader<K, Bucket<K, E>>() {
-					@Override
-					public Bucket<K,E> load(K key) throws Exception {
-						final Bucket<K, E> b = new Bucket<K, E>(
-							BucketedBlockingQueue.this.queueSupplier.get(),
-							BucketedBlockingQueue.this.bucketSensor, 
-							key
-						);
-						BucketedBlockingQueue.this.allBuckets.add(b);
-						return b;
-					}
-				});
+		this(builder(keySupplier)
+				.queueSupplier(queueSupplier)
+				.bucketSensor(bucketSensor)
+				.expireAfterAccess(expireTime, expireUnit));
 	}
 
-	public int size() {
-		int i = 0;
-		for (Bucket<K, E> b : this.allBuckets) {
-			i += b.size();
+	protected BucketedBlockingQueue(final Builder<K, E> builder) {
+		this.keySupplier = builder.keySupplier;
+		this.queueFactory = builder.queueFactory;
+		this.bucketSensor = builder.bucketSensor;
+		this.bucketWeight = builder.bucketWeight;
+		this.scheduler = builder.scheduler != null ? builder.scheduler
+				: new RoundRobinScheduler<K, E>(builder.drainQuantum);
+		this.unthrottle = b -> {
+			if (b.metrics != null) {
+				b.metrics.unthrottled(System.nanoTime());
+			}
+			this.scheduler.requeue(b, 0);
+		};
+
+		final long expireNanos = builder.expireTime > 0 ? builder.expireUnit.toNanos(builder.expireTime) : -1;
+		this.capacity = builder.maxElements > 0 || builder.maxWeight > 0
+				? new CapacityLimiter<E>(builder.maxElements, builder.maxWeight, builder.weigher)
+				: null;
+		this.clock = builder.clock;
+		this.buckets = new BucketRegistry<K, E>(this::newBucket, expireNanos, builder.clock);
+		this.metrics = builder.metrics ? new QueueMetrics<K, E>(this.buckets) : null;
+		this.hotBucket = builder.hotKeyCache ? ThreadLocal.withInitial(HotBucket::new) : null;
+		if (builder.preload != null) {
+			for (K key : builder.preload) {
+				this.adopt(this.buckets.get(key));
+			}
 		}
-		return i;
 	}
 
-	public boolean isEmpty() {
-		for (Bucket<K, E> b : this.allBuckets) {
-			if (!b.isEmpty()) {
-				return false;
+	/**
+	 * Accounts for and schedules elements that were already in a new bucket's
+	 * queue when it was created.
+	 * 
+	 * @param b Newly created bucket
+	 */
+	private void adopt(final Bucket<K, E> b) {
+		final int n = b.size();
+		if (n == 0) {
+			return;
+		}
+		if (this.capacity != null) {
+			long weight = 0;
+			if (this.capacity.weighs()) {
+				for (E e : b) {
+					weight += this.capacity.weigh(e);
+				}
 			}
+			this.capacity.force(n, weight);
 		}
-		return true;
+		this.size.add(n);
+		this.scheduleQuietly(b);
+	}
+
+	private Bucket<K, E> newBucket(final K key) {
+		final Bucket<K, E> b = new Bucket<K, E>(
+			this.queueFactory.apply(key),
+			this.bucketSensor,
+			key,
+			this.bucketWeight.applyAsInt(key)
+		);
+		if (this.metrics != null) {
+			b.metrics = new BucketMetrics<K, E>(b, this.metrics.latency(), this.clock);
+		}
+		return b;
+	}
+
+	private static final class HotBucket<K, E> {
+		Bucket<K, E> bucket;
+		int untilRefresh;
+	}
+
+	/**
+	 * Producer side bucket lookup, going through the calling thread's hot bucket
+	 * when enabled. A hit costs a key comparison and a volatile read of the
+	 * bucket's retired flag, no hashing and no expiry bookkeeping.
+	 * 
+	 * @param key Bucketing key
+	 * @return Bucket for the key
+	 */
+	Bucket<K, E> bucketFor(final K key) {
+		if (this.hotBucket == null) {
+			return this.buckets.get(key);
+		}
+		final HotBucket<K, E> hot = this.hotBucket.get();
+		final Bucket<K, E> b = hot.bucket;
+		if (b != null && --hot.untilRefresh > 0 && !b.retired && (b.key == key || b.key.equals(key))) {
+			return b;
+		}
+		hot.bucket = this.buckets.get(key);
+		hot.untilRefresh = HOT_BUCKET_REFRESH;
+		return hot.bucket;
+	}
+
+	/**
+	 * Producer side lookup of an element's bucket.
+	 * 
+	 * @param e Element
+	 * @return Bucket for the element's key
+	 */
+	Bucket<K, E> bucketOf(final E e) {
+		return this.bucketFor(this.keySupplier.apply(e));
+	}
+
+	/**
+	 * Counts as an access of a bucket a producer found without
+	 * {@link #bucketFor(Object)}.
+	 */
+	void touch(final Bucket<K, E> b) {
+		this.buckets.touch(b);
+	}
+
+	/**
+	 * @return Metrics of this queue, or null unless enabled with
+	 *         {@link Builder#metrics(boolean)}
+	 */
+	public QueueMetrics<K, E> metrics() {
+		return this.metrics;
+	}
+
+	/**
+	 * Maintained count, so O(1). Concurrent with producers and consumers it is
+	 * an estimate, like any concurrent queue's size.
+	 */
+	public int size() {
+		final long size = this.size.sum();
+		return size <= 0 ? 0 : (int) Math.min(Integer.MAX_VALUE, size);
+	}
+
+	public boolean isEmpty() {
+		return this.size.sum() <= 0;
+	}
+
+	/**
+	 * @return Buckets holding elements or being taken from right now
+	 */
+	public int activeBucketCount() {
+		return this.readyCount.get();
 	}
 
 	public boolean contains(Object o) {
-		for (Bucket<K, E> b : this.allBuckets) {
+		for (Bucket<K, E> b : this.buckets.values()) {
 			if (b.contains(o)) {
 				return true;
 			}
@@ -211,14 +589,43 @@ public class BucketedBlockingQueue<K, E> implements BlockingQueue<E> {
 		return els.toArray(a);
 	}
 	
+	/**
+	 * Removes the bucket for a key, discarding any elements still queued in it.
+	 * 
+	 * @param key Bucketing key
+	 */
 	public void removeBucket(K key) {
-		this.bucketsByKey.invalidate(key);
+		this.removeBucket(key, null);
 	}
 
+	/**
+	 * Removes the bucket for a key, handing any elements still queued in it to a
+	 * callback. Elements a producer adds to the bucket while it is being removed
+	 * are still delivered to consumers.
+	 * 
+	 * @param key   Bucketing key
+	 * @param spill {@link Consumer} handed each remaining element
+	 * @return Number of elements handed to spill
+	 */
+	public int removeBucket(K key, Consumer<? super E> spill) {
+		final Bucket<K, E> b = this.buckets.remove(key);
+		if (b == null) {
+			return 0;
+		}
+		return b.drainAll(e -> {
+			this.dequeued(e);
+			if (spill != null) {
+				spill.accept(e);
+			}
+		});
+	}
+
+	@SuppressWarnings("unchecked")
 	public boolean remove(Object o) {
 		boolean removed = false;
-		for (Bucket<K, E> b : this.allBuckets) {
+		for (Bucket<K, E> b : this.buckets.values()) {
 			if (b.remove(o)) {
+				this.dequeued((E) o);
 				removed = true;
 			}
 		}
@@ -229,27 +636,39 @@ public class BucketedBlockingQueue<K, E> implements BlockingQueue<E> {
 		throw new RuntimeException("Not Implemented");
 	}
 
+	/**
+	 * Adds through {@link #offerAll(Collection)}, throwing once the batch is in
+	 * if any element was refused.
+	 */
 	public boolean addAll(Collection<? extends E> c) {
-		for (E e : c) {
-			this.add(e);
+		for (boolean accepted : this.offerAll(c)) {
+			if (!accepted) {
+				throw new IllegalStateException("Queue full");
+			}
 		}
-		return true;
+		return !c.isEmpty();
 	}
 
 	public boolean removeAll(Collection<?> c) {
-		boolean removed = false;
-		for(Bucket<K,E> b: this.allBuckets) {
-			if(b.removeAll(c)) {
-				removed = true;
-			}
-		}
-		return removed;
+		return this.removeIf(e -> c.contains(e));
 	}
 
 	public boolean retainAll(Collection<?> c) {
+		return this.removeIf(e -> !c.contains(e));
+	}
+
+	@Override
+	public boolean removeIf(Predicate<? super E> filter) {
+		final Predicate<E> remove = e -> {
+			if (filter.test(e)) {
+				this.dequeued(e);
+				return true;
+			}
+			return false;
+		};
 		boolean removed = false;
-		for(Bucket<K,E> b: this.allBuckets) {
-			if(b.retainAll(c)) {
+		for (Bucket<K, E> b : this.buckets.values()) {
+			if (b.removeIf(remove)) {
 				removed = true;
 			}
 		}
@@ -257,24 +676,161 @@ public class BucketedBlockingQueue<K, E> implements BlockingQueue<E> {
 	}
 
 	public void clear() {
-		for (Bucket<K, E> b : this.allBuckets) {
-			b.clear();
+		for (Bucket<K, E> b : this.buckets.values()) {
+			b.drainAll(this::dequeued);
 		}
 	}
 
 	/**
-	 * Ticks the counter and return the bucket to work on next.
+	 * Accounts for an element that has left the queue.
 	 * 
-	 * @return
+	 * @param e Element
 	 */
-	private int tick() {
-		int t = Math.abs(tick.incrementAndGet());
-		return (t % this.allBuckets.size());
+	private void dequeued(final E e) {
+		this.size.decrement();
+		if (this.capacity != null) {
+			this.capacity.release(e);
+		}
+	}
+
+	/**
+	 * Accounts for elements that have left the queue.
+	 * 
+	 * @param n      Number of elements
+	 * @param weight Total weight of the elements
+	 */
+	private void dequeued(final int n, final long weight) {
+		this.size.add(-n);
+		if (this.capacity != null) {
+			this.capacity.release(n, weight);
+		}
+	}
+
+	/**
+	 * Schedules the bucket if this call moved it from empty to non-empty.
+	 * 
+	 * @param b Bucket that was just offered to
+	 */
+	private void schedule(final Bucket<K, E> b) {
+		if (this.scheduleQuietly(b)) {
+			this.signalNotEmpty();
+		}
+	}
+
+	/**
+	 * {@link #schedule(Bucket)} leaving waking consumers to the caller.
+	 * 
+	 * @return True if the bucket was newly scheduled
+	 */
+	private boolean scheduleQuietly(final Bucket<K, E> b) {
+		if (b.markReady()) {
+			this.readyCount.incrementAndGet();
+			this.scheduler.add(b);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Wakes a parked consumer, if there is one.
+	 */
+	private void signalNotEmpty() {
+		if (this.waiting.get() > 0) {
+			this.waitLock.lock();
+			try {
+				this.notEmpty.signal();
+			} finally {
+				this.waitLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Wakes a waiting consumer for each newly scheduled bucket, taking the lock
+	 * once.
+	 * 
+	 * @param scheduled Number of buckets newly scheduled
+	 */
+	private void signalNotEmpty(final int scheduled) {
+		if (scheduled > 0 && this.waiting.get() > 0) {
+			this.waitLock.lock();
+			try {
+				for (int i = Math.min(scheduled, this.waiting.get()); i > 0; i--) {
+					this.notEmpty.signal();
+				}
+			} finally {
+				this.waitLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Claims the next scheduled bucket that is allowed to be taken from. Buckets
+	 * that have become eligible again are put back in the schedule first. A bucket
+	 * whose sensor refuses a take is parked until its sensor expects to allow one.
+	 * 
+	 * @return Claimed bucket or null
+	 */
+	private Bucket<K, E> claimNextBucket() {
+		if (this.throttled.promote(System.nanoTime(), this.unthrottle) > 1) {
+			this.signalNotEmpty();
+		}
+
+		int attempts = this.readyCount.get();
+		Bucket<K, E> b;
+		while (attempts-- > 0 && (b = this.scheduler.next()) != null) {
+			if (b.canTake()) {
+				return b;
+			}
+			final long delay = b.takeDelayNanos();
+			final long now = System.nanoTime();
+			if (b.metrics != null) {
+				b.metrics.throttled(now);
+			}
+			if (this.throttled.park(b, now + (delay > 0 ? delay : THROTTLED_PARK_NANOS))) {
+				this.signalNotEmpty();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Hands a claimed bucket back to the scheduler. Empty buckets drop out of the
+	 * schedule until a producer makes them ready again.
+	 * 
+	 * @param b     Claimed bucket
+	 * @param taken Elements taken from the bucket while it was claimed
+	 */
+	protected void releaseBucket(final Bucket<K, E> b, final int taken) {
+		if (!b.isEmpty()) {
+			this.scheduler.requeue(b, taken);
+			this.signalNotEmpty();
+			return;
+		}
+		this.scheduler.idle(b);
+		b.clearReady();
+		this.readyCount.decrementAndGet();
+		// A producer may have added between the isEmpty check and clearing the flag
+		if (!b.isEmpty()) {
+			this.schedule(b);
+		}
+	}
+
+	/**
+	 * Hands a claimed bucket back untouched, keeping its place in the schedule.
+	 * 
+	 * @param b Claimed bucket
+	 */
+	private void restoreBucket(final Bucket<K, E> b) {
+		this.scheduler.restore(b);
+		this.signalNotEmpty();
 	}
 
 	/**
 	 * Get the next bucket, if on is available. 
 	 * Otherwise return null when no bucket can be found.
+	 * The bucket is claimed and must be handed back with
+	 * {@link #releaseBucket(Bucket, int)}.
 	 * 
 	 * @return Next available bucket or null
 	 */
@@ -293,177 +849,510 @@ public class BucketedBlockingQueue<K, E> implements BlockingQueue<E> {
 	 * @param wait How long to wait for a bucket to be available. 
 	 * 0 will wait tell available or interrupted. 
 	 * -1 will return right away.
-	 * Anything else is will be the wait time in MS.
+	 * Anything else is will be the wait time in NS.
 	 * @return Next available bucket or null
 	 * @throws InterruptedException
 	 */
 	private Bucket<K, E> getNextBucket(long wait) throws InterruptedException {
-		if (this.allBuckets.isEmpty()) {
-			return null;
+		Bucket<K, E> b = this.claimNextBucket();
+		if (b != null || wait < 0) {
+			if (b == null) {
+				LOG.trace("Exhausted all buckets. None are available or have elements.");
+			}
+			return b;
 		}
 
-		int iterations = 0;
-		Bucket<K, E> b = null;
-		do {
-			final int t = this.tick();
-			b = this.allBuckets.get(t);
+		final long deadline = System.nanoTime() + wait;
+		this.waiting.incrementAndGet();
+		try {
+			while (true) {
+				this.waitLock.lockInterruptibly();
+				try {
+					// Re-check now that producers can see us waiting
+					b = this.claimNextBucket();
+					if (b != null) {
+						return b;
+					}
 
-			if (b == null || !b.canTake() || !b.isEmpty()) {
-				b = null;
-				iterations++;
-	
-				if (iterations >= this.allBuckets.size()) {
-					iterations = 0;
-					if (wait == 0) {
-						this.allBuckets.wait();
-					} else if (wait < 0) {
-						LOG.trace("Exhausted all buckets. None are available or have elements.");
-						break;
+					// Buckets claimed by other consumers signal when handed back,
+					// throttled ones need a timed wait until the first is due
+					long park = Long.MAX_VALUE;
+					if (!this.throttled.isEmpty()) {
+						park = this.throttled.nextDue() - System.nanoTime();
+						if (park <= 0) {
+							continue;
+						}
+					}
+					if (wait > 0) {
+						final long remaining = deadline - System.nanoTime();
+						if (remaining <= 0) {
+							return null;
+						}
+						park = Math.min(park, remaining);
+					}
+
+					if (park == Long.MAX_VALUE) {
+						this.notEmpty.await();
 					} else {
-						this.allBuckets.wait(wait);
+						this.notEmpty.awaitNanos(park);
 					}
+				} finally {
+					this.waitLock.unlock();
 				}
 			}
-		} while (b == null);
-		
-		return b;
+		} finally {
+			this.waiting.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Elements of a bulk insert headed for one bucket, with their positions in
+	 * the batch.
+	 */
+	static final class Batch<K, E> {
+		final Bucket<K, E> bucket;
+		final List<E> elements = new ArrayList<E>();
+		int[] positions = new int[8];
+
+		Batch(final Bucket<K, E> bucket) {
+			this.bucket = bucket;
+		}
+
+		void add(final E e, final int position) {
+			if (this.elements.size() == this.positions.length) {
+				this.positions = Arrays.copyOf(this.positions, this.positions.length * 2);
+			}
+			this.positions[this.elements.size()] = position;
+			this.elements.add(e);
+		}
+	}
+
+	/**
+	 * Groups a batch by bucket, resolving each key once.
+	 */
+	Collection<Batch<K, E>> batchByBucket(final Collection<? extends E> c) {
+		final Map<K, Batch<K, E>> batches = new LinkedHashMap<K, Batch<K, E>>();
+		int i = 0;
+		for (E e : c) {
+			if (e == null) {
+				throw new NullPointerException();
+			}
+			final K key = this.keySupplier.apply(e);
+			Batch<K, E> batch = batches.get(key);
+			if (batch == null) {
+				batch = new Batch<K, E>(this.bucketFor(key));
+				batches.put(key, batch);
+			}
+			batch.add(e, i++);
+		}
+		return batches.values();
+	}
+
+	/**
+	 * Reserves queue capacity for as much of a batch as fits, all at once when it
+	 * all fits.
+	 * 
+	 * @return Number of leading elements reserved
+	 */
+	private int reserve(final List<E> elements) {
+		if (this.capacity == null) {
+			return elements.size();
+		}
+		long weight = 0;
+		if (this.capacity.weighs()) {
+			for (E e : elements) {
+				weight += this.capacity.weigh(e);
+			}
+		}
+		if (this.capacity.tryAcquire(elements.size(), weight)) {
+			return elements.size();
+		}
+		int reserved = 0;
+		while (reserved < elements.size() && this.capacity.tryAcquire(elements.get(reserved))) {
+			reserved++;
+		}
+		return reserved;
+	}
+
+	/**
+	 * Adds as much of a batch to its bucket as capacity and the bucket's sensor
+	 * allow, in one addAll, and accounts for it.
+	 * 
+	 * @return Number of leading elements added
+	 */
+	private int enqueueBatch(final Batch<K, E> batch, final boolean[] accepted) {
+		final List<E> elements = batch.elements;
+		final int reserved = this.reserve(elements);
+		int added = 0;
+		try {
+			added = batch.bucket.addAllGranted(reserved == elements.size() ? elements : elements.subList(0, reserved));
+		} finally {
+			if (this.capacity != null) {
+				for (int i = added; i < reserved; i++) {
+					this.capacity.release(elements.get(i));
+				}
+			}
+			for (int i = 0; i < added; i++) {
+				accepted[batch.positions[i]] = true;
+			}
+			if (added > 0) {
+				this.size.add(added);
+			}
+		}
+		return added;
+	}
+
+	/**
+	 * Bulk {@link #offer(Object)}. The batch is grouped by key once, and each
+	 * group goes into its bucket with a single addAll and sensor call. Waiting
+	 * consumers are woken once for the whole batch.
+	 * <p>
+	 * Within a group elements are accepted in order, so a group stops at its
+	 * first refused element.
+	 * 
+	 * @param c Elements to add
+	 * @return Whether each element was accepted, in the batch's iteration order
+	 */
+	public boolean[] offerAll(final Collection<? extends E> c) {
+		final boolean[] accepted = new boolean[c.size()];
+		int scheduled = 0;
+		try {
+			for (Batch<K, E> batch : this.batchByBucket(c)) {
+				if (this.enqueueBatch(batch, accepted) > 0 && this.scheduleQuietly(batch.bucket)) {
+					scheduled++;
+				}
+			}
+		} finally {
+			this.signalNotEmpty(scheduled);
+		}
+		return accepted;
+	}
+
+	/**
+	 * Bulk {@link #put(Object)}, like {@link #offerAll(Collection)} but waiting
+	 * for queue capacity and bucket space for what doesn't fit straight away.
+	 * Elements are only refused when their bucket's sensor blocks them.
+	 * 
+	 * @param c Elements to add
+	 * @return Whether each element was accepted, in the batch's iteration order
+	 * @throws InterruptedException
+	 */
+	public boolean[] putAll(final Collection<? extends E> c) throws InterruptedException {
+		final boolean[] accepted = new boolean[c.size()];
+		int scheduled = 0;
+		try {
+			for (Batch<K, E> batch : this.batchByBucket(c)) {
+				final int added = this.enqueueBatch(batch, accepted);
+				if (added > 0 && this.scheduleQuietly(batch.bucket)) {
+					scheduled++;
+				}
+				if (added < batch.elements.size()) {
+					// Consumers must see what's in before we wait on them
+					this.signalNotEmpty(scheduled);
+					scheduled = 0;
+					for (int i = added; i < batch.elements.size(); i++) {
+						if (!this.put(batch.bucket, batch.elements.get(i))) {
+							break;
+						}
+						accepted[batch.positions[i]] = true;
+					}
+				}
+			}
+		} finally {
+			this.signalNotEmpty(scheduled);
+		}
+		return accepted;
 	}
 
 	public void put(E e) throws InterruptedException {
-		final K key = this.keySupplier.apply(e);
+		this.put(this.bucketOf(e), e);
+	}
+
+	/**
+	 * @return False if the bucket's sensor blocked the put
+	 */
+	private boolean put(final Bucket<K, E> b, final E e) throws InterruptedException {
+		if (this.capacity != null) {
+			this.capacity.acquire(e, -1);
+		}
+		boolean success = false;
 		try {
-			this.bucketsByKey.get(key).put(e);
-			this.allBuckets.notify();
-		} catch (ExecutionException e1) {
-			throw new IllegalStateException("Failed to add Element to Bucket Queue", e1);
+			success = b.tryPut(e);
+		} finally {
+			this.enqueued(b, e, success);
 		}
+		return success;
 	}
 
 	public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
-		final K key = this.keySupplier.apply(e);
+		long wait = unit.toNanos(timeout);
+		if (this.capacity != null) {
+			final long start = System.nanoTime();
+			if (!this.capacity.acquire(e, Math.max(0, wait))) {
+				return false;
+			}
+			wait -= System.nanoTime() - start;
+		}
+		final Bucket<K, E> b = this.bucketOf(e);
+		boolean success = false;
 		try {
-			boolean success = this.bucketsByKey.get(key).offer(e, timeout, unit);
-			this.allBuckets.notify();
-			return success;
-		} catch (ExecutionException e1) {
-			throw new IllegalStateException("Failed to add Element to Bucket Queue", e1);
+			success = b.offer(e, Math.max(0, wait), TimeUnit.NANOSECONDS);
+		} finally {
+			this.enqueued(b, e, success);
 		}
+		return success;
 	}
 
 	public boolean add(E e) {
-		final K key = this.keySupplier.apply(e);
+		if (this.capacity != null && !this.capacity.tryAcquire(e)) {
+			throw new IllegalStateException("Queue full");
+		}
+		final Bucket<K, E> b = this.bucketOf(e);
+		boolean success = false;
 		try {
-			boolean success = this.bucketsByKey.get(key).add(e);
-			this.allBuckets.notify();
-			return success;
-		} catch (ExecutionException e1) {
-			throw new IllegalStateException("Failed to add Element to Bucket Queue", e1);
+			success = b.add(e);
+		} finally {
+			this.enqueued(b, e, success);
 		}
+		return success;
 	}
 
 	public boolean offer(E e) {
-		final K key = this.keySupplier.apply(e);
-		try {
-			boolean success = this.bucketsByKey.get(key).offer(e);
-			this.allBuckets.notify();
-			return success;
-		} catch (ExecutionException e1) {
-			throw new IllegalStateException("Failed to add Element to Bucket Queue", e1);
+		if (this.capacity != null && !this.capacity.tryAcquire(e)) {
+			return false;
 		}
+		final Bucket<K, E> b = this.bucketOf(e);
+		return this.enqueued(b, e, b.offer(e));
+	}
+
+	/**
+	 * Schedules the bucket after a successful enqueue, or returns the reserved
+	 * capacity after a failed one.
+	 * 
+	 * @param b       Bucket offered to
+	 * @param e       Element offered
+	 * @param success Whether the bucket accepted the element
+	 * @return success
+	 */
+	private boolean enqueued(final Bucket<K, E> b, final E e, final boolean success) {
+		if (success) {
+			this.size.increment();
+			this.schedule(b);
+		} else if (this.capacity != null) {
+			this.capacity.release(e);
+		}
+		return success;
 	}
 
 	public E take() throws InterruptedException {
-		this.lock.lockInterruptibly();
-		try {
+		E e = null;
+		while (e == null) {
 			final Bucket<K, E> b = this.getNextBucket(0);
 			if (b != null) {
-				return b.poll();
+				e = this.pollBucket(b);
 			}
-			return null;
-		} finally {
-			this.lock.unlock();
 		}
+		return e;
 	}
 
 	public E poll() {
-		if (!this.lock.tryLock()) {
-			return null;
-		}
-		try {
-			final Bucket<K, E> b = this.getNextBucket();
-			if (b != null) {
-				return b.poll();
+		Bucket<K, E> b;
+		while ((b = this.getNextBucket()) != null) {
+			final E e = this.pollBucket(b);
+			if (e != null) {
+				return e;
 			}
-			return null;
-		} finally {
-			this.lock.unlock();
 		}
+		return null;
 	}
 
 	public E poll(long timeout, TimeUnit unit) throws InterruptedException {
-		if (!this.lock.tryLock(timeout, unit)) {
-			return null;
+		long wait = unit.toNanos(timeout);
+		final long deadline = System.nanoTime() + wait;
+		Bucket<K, E> b;
+		while ((b = this.getNextBucket(wait > 0 ? wait : -1)) != null) {
+			final E e = this.pollBucket(b);
+			if (e != null) {
+				return e;
+			}
+			wait = deadline - System.nanoTime();
 		}
+		return null;
+	}
+
+	/**
+	 * Polls a claimed bucket and releases it.
+	 * 
+	 * @param b Claimed bucket
+	 * @return Element or null if the bucket was emptied under us
+	 */
+	private E pollBucket(final Bucket<K, E> b) {
+		E e = null;
 		try {
-			final Bucket<K, E> b = this.getNextBucket(unit.toMillis(timeout));
-			if (b != null) {
-				return b.poll();
-			}
-			return null;
+			e = b.poll();
 		} finally {
-			this.lock.unlock();
+			this.releaseBucket(b, e != null ? 1 : 0);
+		}
+		if (e != null) {
+			this.dequeued(e);
 		}
+		return e;
 	}
 
-	public E remove() {
-		this.lock.lock();
-		try {
-			final Bucket<K, E> b = this.getNextBucket();
+	/**
+	 * Claims the next bucket with elements for exclusive use, waiting if
+	 * necessary. Until the lease is closed no other consumer takes from its key.
+	 * 
+	 * @return Open lease, to be closed once its elements are processed
+	 * @throws InterruptedException
+	 */
+	public BucketLease<K, E> lease() throws InterruptedException {
+		while (true) {
+			final Bucket<K, E> b = this.getNextBucket(0);
 			if (b != null) {
-				return b.remove();
+				if (!b.isEmpty()) {
+					return new BucketLease<K, E>(this, b, this.scheduler.quantum(b));
+				}
+				this.releaseBucket(b, 0);
 			}
+		}
+	}
+
+	/**
+	 * {@link #lease()} waiting up to the given time.
+	 * 
+	 * @return Open lease, or null if no bucket had elements in time
+	 * @throws InterruptedException
+	 */
+	public BucketLease<K, E> lease(long timeout, TimeUnit unit) throws InterruptedException {
+		long wait = unit.toNanos(timeout);
+		final long deadline = System.nanoTime() + wait;
+		Bucket<K, E> b;
+		while ((b = this.getNextBucket(wait > 0 ? wait : -1)) != null) {
+			if (!b.isEmpty()) {
+				return new BucketLease<K, E>(this, b, this.scheduler.quantum(b));
+			}
+			this.releaseBucket(b, 0);
+			wait = deadline - System.nanoTime();
+		}
+		return null;
+	}
+
+	/**
+	 * Polls a bucket held by a {@link BucketLease}, without releasing it.
+	 */
+	E pollLeased(final Bucket<K, E> b) {
+		final E e = b.poll();
+		if (e != null) {
+			this.dequeued(e);
+		}
+		return e;
+	}
+
+	/**
+	 * Drains a bucket held by a {@link BucketLease}, without releasing it.
+	 */
+	int drainLeased(final Bucket<K, E> b, final Collection<? super E> c, final int maxElements) {
+		return this.drainBucket(b, c, maxElements);
+	}
+
+	public E remove() {
+		final E e = this.poll();
+		if (e == null) {
 			throw new NoSuchElementException("No buckets to remove from");
-		} finally {
-			this.lock.unlock();
 		}
+		return e;
 	}
 
 	public E element() {
-		this.lock.lock();
-		try {
-			final Bucket<K, E> b = this.getNextBucket();
-			if (b != null) {
-				return b.element();
-			}
+		final E e = this.peek();
+		if (e == null) {
 			throw new NoSuchElementException("No buckets to remove from");
-		} finally {
-			this.lock.unlock();
 		}
+		return e;
 	}
 
 	public E peek() {
-		this.lock.lock();
-		try {
-			final Bucket<K, E> b = this.getNextBucket();
-			if (b != null) {
-				return b.peek();
+		Bucket<K, E> b;
+		while ((b = this.getNextBucket()) != null) {
+			final E e = b.peek();
+			if (e != null) {
+				this.restoreBucket(b);
+				return e;
 			}
-			return null;
-		} finally {
-			this.lock.unlock();
+			this.releaseBucket(b, 0);
 		}
+		return null;
 	}
 
 	public int remainingCapacity() {
-		return Integer.MAX_VALUE;
+		if (this.capacity == null) {
+			return Integer.MAX_VALUE;
+		}
+		return (int) Math.min(Integer.MAX_VALUE, this.capacity.remainingCount());
 	}
 
 	public int drainTo(Collection<? super E> c) {
-		throw new RuntimeException("Not implemented");
+		return this.drainTo(c, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Drains a claimed bucket, accounting for the drained elements.
+	 * 
+	 * @param b           Claimed bucket
+	 * @param c           Collection to drain to
+	 * @param maxElements Max elements to drain
+	 * @return Number of elements drained
+	 */
+	private int drainBucket(final Bucket<K, E> b, final Collection<? super E> c, final int maxElements) {
+		// Weigh elements on their way into c, so a throwing c can't lose any
+		final Bucket.Drained<E> target = new Bucket.Drained<E>(c,
+				this.capacity != null && this.capacity.weighs() ? this.capacity::weigh : null);
+		try {
+			b.drainCounted(target, maxElements);
+		} finally {
+			if (target.count > 0) {
+				this.dequeued(target.count, target.weight);
+			}
+		}
+		return target.count;
 	}
 
+	/**
+	 * Drains up to maxElements, visiting buckets in scheduler order and taking at
+	 * most the scheduler's quantum from each bucket per visit.
+	 */
 	public int drainTo(Collection<? super E> c, int maxElements) {
-		throw new RuntimeException("Not implemented");
+		if (c == null) {
+			throw new NullPointerException();
+		}
+		if (c == this) {
+			throw new IllegalArgumentException("Can not drain to self");
+		}
+
+		int drained = 0;
+		int misses = 0;
+		while (drained < maxElements) {
+			final Bucket<K, E> b = this.getNextBucket();
+			if (b == null) {
+				break;
+			}
+
+			int n = 0;
+			try {
+				n = this.drainBucket(b, c, Math.min(this.scheduler.quantum(b), maxElements - drained));
+			} finally {
+				this.releaseBucket(b, n);
+			}
+
+			if (n > 0) {
+				drained += n;
+				misses = 0;
+			} else if (++misses >= this.readyCount.get()) {
+				break;
+			}
+		}
+		return drained;
 	}
 
 }
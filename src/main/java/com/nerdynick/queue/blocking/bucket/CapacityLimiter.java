@@ -0,0 +1,229 @@
+package com.nerdynick.queue.blocking.bucket;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToLongFunction;
+
+/**
+ * Queue wide bound on element count and/or total element weight, shared by all
+ * buckets of a {@link BucketedBlockingQueue}.
+ * <p>
+ * Capacity is reserved with a compare-and-set per bound before an element is
+ * handed to its bucket and returned once the element leaves the queue.
+ * Producers that have to wait park on a {@link Condition}, and consumers only
+ * take its lock to signal when a producer is actually parked. A single element
+ * heavier than the weight bound is still let in when the queue holds no
+ * weight, so it can't block forever.
+ * 
+ * @author Nikoleta Verbeck
+ *
+ * @param <E> Type of Elements being stored in the bucketed queues
+ */
+final class CapacityLimiter<E> {
+	private final long maxCount;
+	private final long maxWeight;
+	private final ToLongFunction<? super E> weigher;
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong weight = new AtomicLong();
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notFull = lock.newCondition();
+	private final AtomicInteger waiting = new AtomicInteger();
+
+	/**
+	 * @param maxCount  Max elements in the queue. 0 or less for no count bound.
+	 * @param maxWeight Max total weight in the queue. 0 or less for no weight
+	 *                  bound.
+	 * @param weigher   {@link ToLongFunction} giving an element's weight, e.g.
+	 *                  its estimated size in bytes. Must return the same weight
+	 *                  for an element every time. Only needed with a weight
+	 *                  bound.
+	 */
+	CapacityLimiter(final long maxCount, final long maxWeight, final ToLongFunction<? super E> weigher) {
+		if (maxWeight > 0 && weigher == null) {
+			throw new IllegalArgumentException("A weigher is required for a weight bound");
+		}
+		this.maxCount = maxCount > 0 ? maxCount : Long.MAX_VALUE;
+		this.maxWeight = maxWeight > 0 ? maxWeight : Long.MAX_VALUE;
+		this.weigher = maxWeight > 0 ? weigher : null;
+	}
+
+	/**
+	 * @return True if releases need the released elements to be weighed
+	 */
+	boolean weighs() {
+		return this.weigher != null;
+	}
+
+	/**
+	 * @param e Element
+	 * @return Weight of the element, 0 without a weight bound
+	 */
+	long weigh(final E e) {
+		return this.weigher != null ? this.weigher.applyAsLong(e) : 0;
+	}
+
+	/**
+	 * Reserves capacity for count elements of the given total weight, without
+	 * waiting.
+	 * 
+	 * @param n Number of elements
+	 * @param w Total weight of the elements
+	 * @return True if the capacity was reserved
+	 */
+	boolean tryAcquire(final int n, final long w) {
+		long c;
+		do {
+			c = this.count.get();
+			if (c + n > this.maxCount) {
+				return false;
+			}
+		} while (!this.count.compareAndSet(c, c + n));
+
+		if (this.weigher != null) {
+			long current;
+			do {
+				current = this.weight.get();
+				if (current + w > this.maxWeight && current > 0) {
+					this.count.addAndGet(-n);
+					this.signalNotFull();
+					return false;
+				}
+			} while (!this.weight.compareAndSet(current, current + w));
+		}
+		return true;
+	}
+
+	/**
+	 * Reserves capacity for an element, without waiting.
+	 * 
+	 * @param e Element
+	 * @return True if the capacity was reserved
+	 */
+	boolean tryAcquire(final E e) {
+		return this.tryAcquire(1, this.weigh(e));
+	}
+
+	/**
+	 * Reserves capacity for an element, waiting for consumers to free some.
+	 * 
+	 * @param e    Element
+	 * @param wait Nanoseconds to wait. Negative waits until interrupted.
+	 * @return True if the capacity was reserved
+	 * @throws InterruptedException
+	 */
+	boolean acquire(final E e, final long wait) throws InterruptedException {
+		final long w = this.weigh(e);
+		if (this.tryAcquire(1, w)) {
+			return true;
+		}
+		if (wait == 0) {
+			return false;
+		}
+
+		long remaining = wait;
+		this.waiting.incrementAndGet();
+		try {
+			this.lock.lockInterruptibly();
+			try {
+				// Re-check now that consumers can see us waiting
+				while (!this.tryAcquire(1, w)) {
+					if (wait < 0) {
+						this.notFull.await();
+					} else {
+						if (remaining <= 0) {
+							return false;
+						}
+						remaining = this.notFull.awaitNanos(remaining);
+					}
+				}
+				return true;
+			} finally {
+				this.lock.unlock();
+			}
+		} finally {
+			this.waiting.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Reserves capacity for an element, waiting for consumers to free some.
+	 * 
+	 * @param e       Element
+	 * @param timeout Time to wait
+	 * @param unit    {@link TimeUnit} of timeout
+	 * @return True if the capacity was reserved
+	 * @throws InterruptedException
+	 */
+	boolean acquire(final E e, final long timeout, final TimeUnit unit) throws InterruptedException {
+		return this.acquire(e, Math.max(0, unit.toNanos(timeout)));
+	}
+
+	/**
+	 * Counts elements that are already queued, such as recovered ones, even if
+	 * that takes the queue past its bounds. Producers wait until it drops back.
+	 * 
+	 * @param n Number of elements
+	 * @param w Total weight of the elements
+	 */
+	void force(final int n, final long w) {
+		this.count.addAndGet(n);
+		if (this.weigher != null) {
+			this.weight.addAndGet(w);
+		}
+	}
+
+	/**
+	 * Returns the capacity of an element that left the queue or never made it in.
+	 * 
+	 * @param e Element
+	 */
+	void release(final E e) {
+		this.release(1, this.weigh(e));
+	}
+
+	/**
+	 * Returns the capacity of elements that left the queue or never made it in.
+	 * 
+	 * @param n Number of elements
+	 * @param w Total weight of the elements
+	 */
+	void release(final int n, final long w) {
+		if (n == 0 && w == 0) {
+			return;
+		}
+		this.count.addAndGet(-n);
+		if (this.weigher != null) {
+			this.weight.addAndGet(-w);
+		}
+		this.signalNotFull();
+	}
+
+	private void signalNotFull() {
+		if (this.waiting.get() > 0) {
+			this.lock.lock();
+			try {
+				this.notFull.signalAll();
+			} finally {
+				this.lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * @return Elements that can still be added before the count bound is hit
+	 */
+	long remainingCount() {
+		return this.maxCount == Long.MAX_VALUE ? Long.MAX_VALUE : Math.max(0, this.maxCount - this.count.get());
+	}
+
+	/**
+	 * @return Weight that can still be added before the weight bound is hit
+	 */
+	long remainingWeight() {
+		return this.maxWeight == Long.MAX_VALUE ? Long.MAX_VALUE : Math.max(0, this.maxWeight - this.weight.get());
+	}
+}
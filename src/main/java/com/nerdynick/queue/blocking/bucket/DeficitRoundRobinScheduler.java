@@ -0,0 +1,71 @@
+package com.nerdynick.queue.blocking.bucket;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * Deficit round-robin {@link BucketScheduler}. Each round a bucket is credited
+ * <code>quantum * weight</code> elements and stays at the head of the schedule
+ * until it has used its credit, so throughput across buckets is proportional to
+ * their {@link Bucket#weight}.
+ * <p>
+ * A bucket that is skipped keeps its credit and moves to the tail. A bucket
+ * that goes empty forfeits its credit.
+ * 
+ * @author Nikoleta Verbeck
+ *
+ * @param <K> Type of the Bucketing Key
+ * @param <E> Type of Elements being stored in the bucketed queues
+ */
+public class DeficitRoundRobinScheduler<K, E> implements BucketScheduler<K, E> {
+	private final ConcurrentLinkedDeque<Bucket<K, E>> ready = new ConcurrentLinkedDeque<Bucket<K, E>>();
+	private final int quantum;
+
+	/**
+	 * @param quantum Elements credited per unit of bucket weight each round
+	 */
+	public DeficitRoundRobinScheduler(final int quantum) {
+		if (quantum < 1) {
+			throw new IllegalArgumentException("Quantum must be at least 1");
+		}
+		this.quantum = quantum;
+	}
+
+	@Override
+	public void add(Bucket<K, E> bucket) {
+		this.ready.offer(bucket);
+	}
+
+	@Override
+	public Bucket<K, E> next() {
+		final Bucket<K, E> b = this.ready.poll();
+		if (b != null && b.deficit <= 0) {
+			b.deficit += this.quantum * b.weight;
+		}
+		return b;
+	}
+
+	@Override
+	public int quantum(Bucket<K, E> bucket) {
+		return bucket.deficit;
+	}
+
+	@Override
+	public void requeue(Bucket<K, E> bucket, int taken) {
+		bucket.deficit -= taken;
+		if (taken > 0 && bucket.deficit > 0) {
+			this.ready.offerFirst(bucket);
+		} else {
+			this.ready.offer(bucket);
+		}
+	}
+
+	@Override
+	public void restore(Bucket<K, E> bucket) {
+		this.ready.offerFirst(bucket);
+	}
+
+	@Override
+	public void idle(Bucket<K, E> bucket) {
+		bucket.deficit = 0;
+	}
+}
@@ -0,0 +1,120 @@
+package com.nerdynick.queue.blocking.bucket;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Open addressing map from a primitive long key to its {@link Bucket}, in front
+ * of the {@link BucketRegistry} of a {@link LongBucketedBlockingQueue}.
+ * <p>
+ * Reads are lock free and allocate nothing: a linear probe over a long array,
+ * with the bucket read through a volatile slot that is written after its key.
+ * Writes happen only when a key's bucket is created or replaced, under a lock.
+ * Buckets the registry has retired stay in place until replaced, and are
+ * dropped when the table is rebuilt on growth.
+ * 
+ * @author Nikoleta Verbeck
+ *
+ * @param <E> Type of Elements being stored in the bucketed queues
+ */
+final class LongBucketMap<E> {
+	private static final int MIN_CAPACITY = 64;
+
+	private static final class Table<E> {
+		final long[] keys;
+		final AtomicReferenceArray<Bucket<Long, E>> buckets;
+		final int mask;
+		int size;
+
+		Table(final int capacity) {
+			this.keys = new long[capacity];
+			this.buckets = new AtomicReferenceArray<Bucket<Long, E>>(capacity);
+			this.mask = capacity - 1;
+		}
+	}
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private volatile Table<E> table = new Table<E>(MIN_CAPACITY);
+
+	/**
+	 * @param key Bucketing key
+	 * @return Bucket last put for the key, possibly retired, or null
+	 */
+	Bucket<Long, E> get(final long key) {
+		final Table<E> t = this.table;
+		int i = index(key, t.mask);
+		Bucket<Long, E> b;
+		while ((b = t.buckets.get(i)) != null) {
+			if (t.keys[i] == key) {
+				return b;
+			}
+			i = (i + 1) & t.mask;
+		}
+		return null;
+	}
+
+	/**
+	 * @param key Bucketing key
+	 * @param b   Current bucket for the key
+	 */
+	void put(final long key, final Bucket<Long, E> b) {
+		this.lock.lock();
+		try {
+			Table<E> t = this.table;
+			if ((t.size + 1) * 2 > t.keys.length) {
+				t = this.rebuild(t);
+			}
+			int i = index(key, t.mask);
+			while (t.buckets.get(i) != null) {
+				if (t.keys[i] == key) {
+					t.buckets.set(i, b);
+					return;
+				}
+				i = (i + 1) & t.mask;
+			}
+			// Key first, readers only look at it once they see the bucket
+			t.keys[i] = key;
+			t.buckets.set(i, b);
+			t.size++;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Copies the live buckets into a table with room to grow and publishes it.
+	 */
+	private Table<E> rebuild(final Table<E> old) {
+		int live = 0;
+		for (int i = 0; i < old.keys.length; i++) {
+			final Bucket<Long, E> b = old.buckets.get(i);
+			if (b != null && !b.retired) {
+				live++;
+			}
+		}
+		int capacity = MIN_CAPACITY;
+		while (capacity < live * 4) {
+			capacity <<= 1;
+		}
+		final Table<E> t = new Table<E>(capacity);
+		for (int i = 0; i < old.keys.length; i++) {
+			final Bucket<Long, E> b = old.buckets.get(i);
+			if (b != null && !b.retired) {
+				int j = index(old.keys[i], t.mask);
+				while (t.buckets.get(j) != null) {
+					j = (j + 1) & t.mask;
+				}
+				t.keys[j] = old.keys[i];
+				t.buckets.set(j, b);
+				t.size++;
+			}
+		}
+		this.table = t;
+		return t;
+	}
+
+	private static int index(final long key, final int mask) {
+		final long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+}
@@ -0,0 +1,116 @@
+package com.nerdynick.queue.blocking.bucket;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.ToLongFunction;
+
+import com.nerdynick.queue.blocking.bucket.sensor.BucketSensor;
+
+/**
+ * {@link BucketedBlockingQueue} for primitive long keys, such as numeric tenant
+ * ids.
+ * <p>
+ * The key is extracted with a {@link ToLongFunction} and looked up in a
+ * {@link LongBucketMap}, so adding an element neither boxes its key nor hashes
+ * an object. Only creating a key's bucket goes through the boxed registry,
+ * which still owns expiry and removal. Everything else behaves as the
+ * {@link BucketedBlockingQueue} it extends.
+ * 
+ * @author Nikoleta Verbeck
+ *
+ * @param <E> Type of Elements being stored in the bucketed queues
+ */
+public class LongBucketedBlockingQueue<E> extends BucketedBlockingQueue<Long, E> {
+	private final ToLongFunction<? super E> keyOf;
+	private final LongBucketMap<E> index = new LongBucketMap<E>();
+
+	public LongBucketedBlockingQueue(
+			final ToLongFunction<? super E> keyOf,
+			final BiFunction<Long, Bucket<Long, E>, BucketSensor> bucketSensor,
+			final long expireTime, final TimeUnit expireUnit) {
+		this(keyOf, LongBucketedBlockingQueue.<E>longBuilder(keyOf)
+				.bucketSensor(bucketSensor)
+				.expireAfterAccess(expireTime, expireUnit));
+	}
+
+	private LongBucketedBlockingQueue(final ToLongFunction<? super E> keyOf, final BucketedBlockingQueue.Builder<Long, E> builder) {
+		super(builder);
+		this.keyOf = keyOf;
+	}
+
+	/**
+	 * Builder for a {@link LongBucketedBlockingQueue}. The options are those of
+	 * {@link BucketedBlockingQueue.Builder}.
+	 * 
+	 * @param <E> Type of Elements being stored in the bucketed queues
+	 */
+	public static class Builder<E> extends BucketedBlockingQueue.Builder<Long, E> {
+		private final ToLongFunction<? super E> keyOf;
+
+		protected Builder(final ToLongFunction<? super E> keyOf) {
+			super(e -> keyOf.applyAsLong(e));
+			this.keyOf = keyOf;
+		}
+
+		@Override
+		public LongBucketedBlockingQueue<E> build() {
+			return new LongBucketedBlockingQueue<E>(this.keyOf, this);
+		}
+	}
+
+	/**
+	 * @param <E>   Type of Elements being stored in the bucketed queues
+	 * @param keyOf {@link ToLongFunction} to provide the bucketing key given the
+	 *              element being inserted
+	 * @return New {@link Builder}
+	 */
+	public static <E> Builder<E> longBuilder(final ToLongFunction<? super E> keyOf) {
+		return new Builder<E>(keyOf);
+	}
+
+	@Override
+	Bucket<Long, E> bucketOf(final E e) {
+		final long key = this.keyOf.applyAsLong(e);
+		Bucket<Long, E> b = this.index.get(key);
+		if (b == null || b.retired) {
+			b = this.bucketFor(key);
+			this.index.put(key, b);
+		} else {
+			this.touch(b);
+		}
+		return b;
+	}
+
+	/**
+	 * Groups by bucket identity instead of the boxed key, following runs of the
+	 * same bucket without a lookup. Groups stay in order of first appearance.
+	 */
+	@Override
+	Collection<Batch<Long, E>> batchByBucket(final Collection<? extends E> c) {
+		final Map<Bucket<Long, E>, Batch<Long, E>> batches = new IdentityHashMap<Bucket<Long, E>, Batch<Long, E>>();
+		final List<Batch<Long, E>> ordered = new ArrayList<Batch<Long, E>>();
+		Batch<Long, E> last = null;
+		int i = 0;
+		for (E e : c) {
+			if (e == null) {
+				throw new NullPointerException();
+			}
+			final Bucket<Long, E> b = this.bucketOf(e);
+			if (last == null || last.bucket != b) {
+				last = batches.get(b);
+				if (last == null) {
+					last = new Batch<Long, E>(b);
+					batches.put(b, last);
+					ordered.add(last);
+				}
+			}
+			last.add(e, i++);
+		}
+		return ordered;
+	}
+}
@@ -0,0 +1,510 @@
+package com.nerdynick.queue.blocking.bucket;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * {@link BlockingQueue} of binary payloads stored off heap, for
+ * {@link Bucket}s holding large numbers of small serialized messages.
+ * <p>
+ * Payloads are copied into direct {@link ByteBuffer} slabs as length prefixed
+ * records. Taking returns a read-only view of the record inside its slab, no
+ * copy. Slab memory is written once and never overwritten, so a view stays
+ * valid for as long as it is held. A slab is dropped once fully read, and its
+ * direct memory freed when it and every view into it are unreachable.
+ * <p>
+ * Slabs start small and grow with the queue's depth up to the max slab size,
+ * so idle buckets stay small. The heap footprint is a few fields plus one
+ * reference per slab, independent of the number of records. Removing records
+ * from the middle, through remove, removeIf or the iterator, copies the
+ * remaining records into new slabs.
+ * 
+ * @author Nikoleta Verbeck
+ */
+public class OffHeapBlockingQueue extends AbstractQueue<ByteBuffer> implements BlockingQueue<ByteBuffer> {
+	private static final int HEADER = Integer.BYTES;
+	private static final int MIN_SLAB = 1024;
+	private static final int DEFAULT_MAX_SLAB = 64 * 1024;
+
+	@FunctionalInterface
+	private interface RecordFilter {
+		boolean test(ByteBuffer slab, int offset);
+	}
+
+	private final long maxBytes;
+	private final int maxSlab;
+	private final IntFunction<ByteBuffer> allocator;
+	/**
+	 * Written to at the last slab's position, read from {@link #readPos} of the
+	 * first. A slab's position marks the end of its records.
+	 */
+	private final ArrayDeque<ByteBuffer> slabs = new ArrayDeque<ByteBuffer>(4);
+	private int readPos;
+	private int count;
+	private long bytes;
+	private int waiters;
+
+	/**
+	 * Unbounded queue.
+	 */
+	public OffHeapBlockingQueue() {
+		this(Long.MAX_VALUE);
+	}
+
+	/**
+	 * @param maxBytes Max payload bytes held
+	 */
+	public OffHeapBlockingQueue(final long maxBytes) {
+		this(maxBytes, DEFAULT_MAX_SLAB, ByteBuffer::allocateDirect);
+	}
+
+	/**
+	 * @param maxBytes  Max payload bytes held
+	 * @param maxSlab   Largest slab allocated, unless a single record needs more
+	 * @param allocator Allocates a slab of the given size
+	 */
+	public OffHeapBlockingQueue(final long maxBytes, final int maxSlab, final IntFunction<ByteBuffer> allocator) {
+		if (maxBytes < 1 || maxSlab < MIN_SLAB) {
+			throw new IllegalArgumentException("Max bytes must be at least 1 and max slab at least " + MIN_SLAB);
+		}
+		this.maxBytes = maxBytes;
+		this.maxSlab = maxSlab;
+		this.allocator = allocator;
+	}
+
+	/**
+	 * {@link Supplier} for an unbounded {@link OffHeapBlockingQueue} per
+	 * {@link Bucket}.
+	 */
+	public static Supplier<BlockingQueue<ByteBuffer>> queueSupplier() {
+		return () -> new OffHeapBlockingQueue();
+	}
+
+	/**
+	 * {@link Supplier} for an {@link OffHeapBlockingQueue} per {@link Bucket},
+	 * holding at most maxBytes of payload each.
+	 */
+	public static Supplier<BlockingQueue<ByteBuffer>> queueSupplier(final long maxBytes) {
+		return () -> new OffHeapBlockingQueue(maxBytes);
+	}
+
+	/**
+	 * Copies a payload's remaining bytes in as a record, leaving the payload's
+	 * position untouched.
+	 */
+	private void append(final ByteBuffer payload) {
+		final int len = payload.remaining();
+		ByteBuffer tail = this.slabs.peekLast();
+		if (tail == null || tail.remaining() < HEADER + len) {
+			if (this.count == 0) {
+				// Nothing left to read in the old slabs
+				this.slabs.clear();
+				this.readPos = 0;
+			}
+			tail = this.allocator.apply(this.slabSize(HEADER + len));
+			this.slabs.addLast(tail);
+		}
+		tail.putInt(len);
+		tail.put(payload.duplicate());
+		this.count++;
+		this.bytes += len;
+	}
+
+	/**
+	 * Next slab's size, growing with the queue's depth.
+	 */
+	private int slabSize(final int need) {
+		final long depth = Math.max(MIN_SLAB, Long.highestOneBit(Math.max(1, this.bytes)) << 1);
+		return Math.max(need, (int) Math.min(this.maxSlab, depth));
+	}
+
+	private void enqueue(final ByteBuffer payload) {
+		this.append(payload);
+		if (this.waiters > 0) {
+			this.notifyAll();
+		}
+	}
+
+	/**
+	 * @return Read-only view of the record at the given offset
+	 */
+	private static ByteBuffer view(final ByteBuffer slab, final int offset) {
+		final int len = slab.getInt(offset);
+		final ByteBuffer view = slab.asReadOnlyBuffer();
+		view.limit(offset + HEADER + len);
+		view.position(offset + HEADER);
+		return view.slice();
+	}
+
+	/**
+	 * Moves past fully read slabs to the one holding the next record.
+	 */
+	private ByteBuffer head() {
+		ByteBuffer head = this.slabs.peekFirst();
+		while (this.readPos >= head.position()) {
+			this.slabs.pollFirst();
+			this.readPos = 0;
+			head = this.slabs.peekFirst();
+		}
+		return head;
+	}
+
+	private ByteBuffer dequeue() {
+		final ByteBuffer head = this.head();
+		final ByteBuffer e = view(head, this.readPos);
+		this.readPos += HEADER + e.remaining();
+		this.count--;
+		this.bytes -= e.remaining();
+		this.emptied();
+		return e;
+	}
+
+	/**
+	 * Drops slabs that hold nothing left to read and wakes blocked producers
+	 * after records were removed.
+	 */
+	private void emptied() {
+		if (this.count == 0) {
+			final ByteBuffer tail = this.slabs.peekLast();
+			this.slabs.clear();
+			// Keep appending to the last slab while it has room
+			if (tail != null && tail.remaining() >= HEADER) {
+				this.slabs.addLast(tail);
+				this.readPos = tail.position();
+			} else {
+				this.readPos = 0;
+			}
+		}
+		if (this.waiters > 0) {
+			this.notifyAll();
+		}
+	}
+
+	/**
+	 * Removes every record the filter matches by copying the others into new
+	 * slabs, so views already handed out are left intact. The filter is tested
+	 * once per record.
+	 * 
+	 * @return Number of records removed
+	 */
+	private int removeRecords(final RecordFilter filter) {
+		if (this.count == 0) {
+			return 0;
+		}
+		final boolean[] remove = new boolean[this.count];
+		int removed = 0;
+		int i = 0;
+		int pos = this.readPos;
+		for (ByteBuffer slab : this.slabs) {
+			for (; pos < slab.position(); pos += HEADER + slab.getInt(pos)) {
+				if (filter.test(slab, pos)) {
+					remove[i] = true;
+					removed++;
+				}
+				i++;
+			}
+			pos = 0;
+		}
+		if (removed == 0) {
+			return 0;
+		}
+
+		final ByteBuffer[] old = this.slabs.toArray(new ByteBuffer[this.slabs.size()]);
+		pos = this.readPos;
+		this.slabs.clear();
+		this.readPos = 0;
+		this.count = 0;
+		this.bytes = 0;
+		i = 0;
+		for (ByteBuffer slab : old) {
+			for (; pos < slab.position(); pos += HEADER + slab.getInt(pos)) {
+				if (!remove[i++]) {
+					this.append(view(slab, pos));
+				}
+			}
+			pos = 0;
+		}
+		this.emptied();
+		return removed;
+	}
+
+	private void checkFits(final ByteBuffer e) {
+		if (e == null) {
+			throw new NullPointerException();
+		}
+		if (e.remaining() > this.maxBytes) {
+			throw new IllegalArgumentException("Payload larger than the queue's max bytes");
+		}
+	}
+
+	private boolean full(final ByteBuffer e) {
+		return this.bytes + e.remaining() > this.maxBytes;
+	}
+
+	/**
+	 * Waits on the monitor, counted so notifiers can skip the notify when nobody
+	 * waits.
+	 * 
+	 * @param nanos Max nanoseconds to wait, 0 or less waits until notified
+	 */
+	private void await(final long nanos) throws InterruptedException {
+		this.waiters++;
+		try {
+			if (nanos <= 0) {
+				this.wait();
+			} else {
+				TimeUnit.NANOSECONDS.timedWait(this, nanos);
+			}
+		} finally {
+			this.waiters--;
+		}
+	}
+
+	@Override
+	public synchronized boolean offer(ByteBuffer e) {
+		if (e == null) {
+			throw new NullPointerException();
+		}
+		if (this.full(e)) {
+			return false;
+		}
+		this.enqueue(e);
+		return true;
+	}
+
+	@Override
+	public synchronized void put(ByteBuffer e) throws InterruptedException {
+		this.checkFits(e);
+		while (this.full(e)) {
+			this.await(0);
+		}
+		this.enqueue(e);
+	}
+
+	@Override
+	public synchronized boolean offer(ByteBuffer e, long timeout, TimeUnit unit) throws InterruptedException {
+		this.checkFits(e);
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (this.full(e)) {
+			final long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				return false;
+			}
+			this.await(remaining);
+		}
+		this.enqueue(e);
+		return true;
+	}
+
+	@Override
+	public synchronized ByteBuffer poll() {
+		return this.count == 0 ? null : this.dequeue();
+	}
+
+	@Override
+	public synchronized ByteBuffer take() throws InterruptedException {
+		while (this.count == 0) {
+			this.await(0);
+		}
+		return this.dequeue();
+	}
+
+	@Override
+	public synchronized ByteBuffer poll(long timeout, TimeUnit unit) throws InterruptedException {
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (this.count == 0) {
+			final long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				return null;
+			}
+			this.await(remaining);
+		}
+		return this.dequeue();
+	}
+
+	@Override
+	public synchronized ByteBuffer peek() {
+		return this.count == 0 ? null : view(this.head(), this.readPos);
+	}
+
+	@Override
+	public synchronized int size() {
+		return this.count;
+	}
+
+	@Override
+	public synchronized boolean isEmpty() {
+		return this.count == 0;
+	}
+
+	/**
+	 * @return Payload bytes held
+	 */
+	public synchronized long bytes() {
+		return this.bytes;
+	}
+
+	/**
+	 * Bounded by bytes rather than elements.
+	 * 
+	 * @return Payload bytes that can still be added, {@link Integer#MAX_VALUE}
+	 *         when unbounded
+	 */
+	@Override
+	public synchronized int remainingCapacity() {
+		return (int) Math.min(Integer.MAX_VALUE, this.maxBytes - this.bytes);
+	}
+
+	@Override
+	public int drainTo(Collection<? super ByteBuffer> c) {
+		return this.drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public synchronized int drainTo(Collection<? super ByteBuffer> c, int maxElements) {
+		if (c == this) {
+			throw new IllegalArgumentException("Can not drain to self");
+		}
+		final int n = Math.min(maxElements, this.count);
+		if (n <= 0) {
+			return 0;
+		}
+		ByteBuffer head = this.head();
+		try {
+			// Consume one at a time, so a collection refusing an element leaves it queued
+			for (int i = 0; i < n; i++) {
+				if (this.readPos >= head.position()) {
+					head = this.head();
+				}
+				final ByteBuffer e = view(head, this.readPos);
+				c.add(e);
+				this.readPos += HEADER + e.remaining();
+				this.bytes -= e.remaining();
+				this.count--;
+			}
+		} finally {
+			this.emptied();
+		}
+		return n;
+	}
+
+	@Override
+	public synchronized boolean contains(Object o) {
+		if (!(o instanceof ByteBuffer)) {
+			return false;
+		}
+		int pos = this.readPos;
+		for (ByteBuffer slab : this.slabs) {
+			for (; pos < slab.position(); pos += HEADER + slab.getInt(pos)) {
+				if (o.equals(view(slab, pos))) {
+					return true;
+				}
+			}
+			pos = 0;
+		}
+		return false;
+	}
+
+	@Override
+	public synchronized boolean remove(Object o) {
+		if (!(o instanceof ByteBuffer)) {
+			return false;
+		}
+		final boolean[] found = { false };
+		return this.removeRecords((slab, offset) -> {
+			if (!found[0] && o.equals(view(slab, offset))) {
+				found[0] = true;
+				return true;
+			}
+			return false;
+		}) > 0;
+	}
+
+	@Override
+	public synchronized boolean removeIf(Predicate<? super ByteBuffer> filter) {
+		return this.removeRecords((slab, offset) -> filter.test(view(slab, offset))) > 0;
+	}
+
+	@Override
+	public synchronized void clear() {
+		if (this.count == 0) {
+			return;
+		}
+		this.count = 0;
+		this.bytes = 0;
+		this.emptied();
+	}
+
+	@Override
+	public synchronized Object[] toArray() {
+		final Object[] a = new Object[this.count];
+		int i = 0;
+		int pos = this.readPos;
+		for (ByteBuffer slab : this.slabs) {
+			for (; pos < slab.position(); pos += HEADER + slab.getInt(pos)) {
+				a[i++] = view(slab, pos);
+			}
+			pos = 0;
+		}
+		return a;
+	}
+
+	/**
+	 * Weakly consistent iterator over a snapshot of the queue. Removal through
+	 * the iterator removes the same record, if it is still queued.
+	 */
+	@Override
+	public synchronized Iterator<ByteBuffer> iterator() {
+		final ByteBuffer[] slabOf = new ByteBuffer[this.count];
+		final int[] offsetOf = new int[this.count];
+		int i = 0;
+		int pos = this.readPos;
+		for (ByteBuffer slab : this.slabs) {
+			for (; pos < slab.position(); pos += HEADER + slab.getInt(pos)) {
+				slabOf[i] = slab;
+				offsetOf[i++] = pos;
+			}
+			pos = 0;
+		}
+		return new Iterator<ByteBuffer>() {
+			int next = 0;
+			int last = -1;
+
+			@Override
+			public boolean hasNext() {
+				return this.next < slabOf.length;
+			}
+
+			@Override
+			public ByteBuffer next() {
+				if (this.next >= slabOf.length) {
+					throw new NoSuchElementException();
+				}
+				this.last = this.next++;
+				return view(slabOf[this.last], offsetOf[this.last]);
+			}
+
+			@Override
+			public void remove() {
+				if (this.last < 0) {
+					throw new IllegalStateException();
+				}
+				final ByteBuffer slab = slabOf[this.last];
+				final int offset = offsetOf[this.last];
+				this.last = -1;
+				synchronized (OffHeapBlockingQueue.this) {
+					OffHeapBlockingQueue.this.removeRecords((s, o) -> s == slab && o == offset);
+				}
+			}
+		};
+	}
+}
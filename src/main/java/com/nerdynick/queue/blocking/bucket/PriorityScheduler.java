@@ -0,0 +1,177 @@
+package com.nerdynick.queue.blocking.bucket;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+/**
+ * Strict priority {@link BucketScheduler} over a small number of tiers, tier 0
+ * being the highest. Each tier schedules its own ready buckets with a
+ * dedicated {@link BucketScheduler}, so selection never scans buckets.
+ * <p>
+ * To keep lower tiers from starving, every time a tier with ready buckets is
+ * passed over in favour of a higher one it ages by one. Once it has been
+ * passed over <code>starvationLimit</code> times it is served next, which
+ * guarantees each non-empty tier at least one visit in every
+ * <code>starvationLimit + 1</code>.
+ * 
+ * @author Nikoleta Verbeck
+ *
+ * @param <K> Type of the Bucketing Key
+ * @param <E> Type of Elements being stored in the bucketed queues
+ */
+public class PriorityScheduler<K, E> implements BucketScheduler<K, E> {
+	private final ToIntFunction<K> tierOf;
+	private final int starvationLimit;
+	private final BucketScheduler<K, E>[] tiers;
+	private final AtomicInteger[] ready;
+	private final AtomicInteger[] passed;
+
+	/**
+	 * Priority scheduler using {@link RoundRobinScheduler}s with a quantum of 1
+	 * within each tier, so drainTo and leases take one element per bucket visit.
+	 * A scheduler passed to the builder replaces its
+	 * {@link BucketedBlockingQueue.Builder#drainQuantum(int)}, use
+	 * {@link #PriorityScheduler(int, ToIntFunction, int, int)} for larger
+	 * batches.
+	 * 
+	 * @param tiers           Number of priority tiers
+	 * @param tierOf          {@link ToIntFunction} giving the tier of a bucket key.
+	 *                        Out of range tiers are clamped.
+	 * @param starvationLimit Times a tier may be passed over before it is served
+	 */
+	public PriorityScheduler(final int tiers, final ToIntFunction<K> tierOf, final int starvationLimit) {
+		this(tiers, tierOf, starvationLimit, 1);
+	}
+
+	/**
+	 * Priority scheduler using {@link RoundRobinScheduler}s within each tier.
+	 * 
+	 * @param tiers           Number of priority tiers
+	 * @param tierOf          {@link ToIntFunction} giving the tier of a bucket key.
+	 *                        Out of range tiers are clamped.
+	 * @param starvationLimit Times a tier may be passed over before it is served
+	 * @param drainQuantum    Max elements a drainTo or lease takes from one bucket
+	 *                        before moving on to the next
+	 */
+	public PriorityScheduler(final int tiers, final ToIntFunction<K> tierOf, final int starvationLimit,
+			final int drainQuantum) {
+		this(tiers, tierOf, starvationLimit, () -> new RoundRobinScheduler<K, E>(drainQuantum));
+	}
+
+	/**
+	 * @param tiers           Number of priority tiers
+	 * @param tierOf          {@link ToIntFunction} giving the tier of a bucket key.
+	 *                        Out of range tiers are clamped.
+	 * @param starvationLimit Times a tier may be passed over before it is served
+	 * @param tierScheduler   {@link Supplier} of the {@link BucketScheduler} used
+	 *                        within each tier
+	 */
+	public PriorityScheduler(final int tiers, final ToIntFunction<K> tierOf, final int starvationLimit,
+			final Supplier<BucketScheduler<K, E>> tierScheduler) {
+		if (tiers < 1) {
+			throw new IllegalArgumentException("Must have at least 1 tier");
+		}
+		if (starvationLimit < 1) {
+			throw new IllegalArgumentException("Starvation limit must be at least 1");
+		}
+		this.tierOf = tierOf;
+		this.starvationLimit = starvationLimit;
+		@SuppressWarnings("unchecked")
+		final BucketScheduler<K, E>[] schedulers = (BucketScheduler<K, E>[]) new BucketScheduler<?, ?>[tiers];
+		this.tiers = schedulers;
+		this.ready = new AtomicInteger[tiers];
+		this.passed = new AtomicInteger[tiers];
+		for (int i = 0; i < tiers; i++) {
+			this.tiers[i] = tierScheduler.get();
+			this.ready[i] = new AtomicInteger();
+			this.passed[i] = new AtomicInteger();
+		}
+	}
+
+	private int tier(final Bucket<K, E> bucket) {
+		if (bucket.tier < 0) {
+			bucket.tier = Math.max(0, Math.min(this.tiers.length - 1, this.tierOf.applyAsInt(bucket.key)));
+		}
+		return bucket.tier;
+	}
+
+	@Override
+	public void add(Bucket<K, E> bucket) {
+		final int t = this.tier(bucket);
+		this.tiers[t].add(bucket);
+		this.ready[t].incrementAndGet();
+	}
+
+	@Override
+	public Bucket<K, E> next() {
+		int first = -1;
+		for (int t = 0; t < this.tiers.length; t++) {
+			if (this.ready[t].get() <= 0) {
+				continue;
+			}
+			if (first < 0) {
+				first = t;
+			} else if (this.passed[t].get() >= this.starvationLimit) {
+				final Bucket<K, E> b = this.take(t);
+				if (b != null) {
+					return b;
+				}
+			}
+		}
+		if (first < 0) {
+			return null;
+		}
+
+		final Bucket<K, E> b = this.take(first);
+		if (b != null) {
+			for (int t = first + 1; t < this.tiers.length; t++) {
+				if (this.ready[t].get() > 0) {
+					this.passed[t].incrementAndGet();
+				}
+			}
+			return b;
+		}
+		// Lost a race for the tier, fall back to whatever is left
+		for (int t = 0; t < this.tiers.length; t++) {
+			final Bucket<K, E> o = this.take(t);
+			if (o != null) {
+				return o;
+			}
+		}
+		return null;
+	}
+
+	private Bucket<K, E> take(final int t) {
+		final Bucket<K, E> b = this.tiers[t].next();
+		if (b != null) {
+			this.ready[t].decrementAndGet();
+			this.passed[t].set(0);
+		}
+		return b;
+	}
+
+	@Override
+	public int quantum(Bucket<K, E> bucket) {
+		return this.tiers[this.tier(bucket)].quantum(bucket);
+	}
+
+	@Override
+	public void requeue(Bucket<K, E> bucket, int taken) {
+		final int t = this.tier(bucket);
+		this.tiers[t].requeue(bucket, taken);
+		this.ready[t].incrementAndGet();
+	}
+
+	@Override
+	public void restore(Bucket<K, E> bucket) {
+		final int t = this.tier(bucket);
+		this.tiers[t].restore(bucket);
+		this.ready[t].incrementAndGet();
+	}
+
+	@Override
+	public void idle(Bucket<K, E> bucket) {
+		this.tiers[this.tier(bucket)].idle(bucket);
+	}
+}
@@ -0,0 +1,91 @@
+package com.nerdynick.queue.blocking.bucket;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.ToLongFunction;
+
+import com.nerdynick.gauges.LatencyHistogram;
+
+/**
+ * Queue wide metrics of a {@link BucketedBlockingQueue}, from
+ * {@link BucketedBlockingQueue#metrics()}. Reading never locks the queue.
+ * 
+ * @author Nikoleta Verbeck
+ *
+ * @param <K> Type of the Bucketing Key
+ * @param <E> Type of Elements being stored in the bucketed queues
+ */
+public final class QueueMetrics<K, E> {
+	private final BucketRegistry<K, E> buckets;
+	private final LatencyHistogram latency = new LatencyHistogram();
+
+	QueueMetrics(final BucketRegistry<K, E> buckets) {
+		this.buckets = buckets;
+	}
+
+	/**
+	 * @return Nanoseconds elements spent between being enqueued and taken
+	 */
+	public LatencyHistogram latency() {
+		return this.latency;
+	}
+
+	/**
+	 * @param key Bucketing key
+	 * @return Metrics of the key's bucket, or null if it has none
+	 */
+	public BucketMetrics<K, E> bucket(final K key) {
+		final Bucket<K, E> b = this.buckets.getIfPresent(key);
+		return b != null ? b.metrics : null;
+	}
+
+	/**
+	 * @param n Max buckets to return
+	 * @return Buckets with the highest enqueue rate, hottest first
+	 */
+	public List<BucketMetrics<K, E>> hottest(final int n) {
+		return this.top(n, BucketMetrics::enqueueRate);
+	}
+
+	/**
+	 * @param n  Max buckets to return
+	 * @param by Value to rank buckets by
+	 * @return Buckets with the highest value, highest first
+	 */
+	public List<BucketMetrics<K, E>> top(final int n, final ToLongFunction<BucketMetrics<K, E>> by) {
+		if (n < 1) {
+			return Collections.emptyList();
+		}
+		// Min heap of the best n seen so far, keeping values stable while ranking
+		final PriorityQueue<Ranked<K, E>> best = new PriorityQueue<Ranked<K, E>>(n + 1,
+				Comparator.comparingLong(r -> r.value));
+		for (Bucket<K, E> b : this.buckets.values()) {
+			if (b.metrics == null) {
+				continue;
+			}
+			best.add(new Ranked<K, E>(b.metrics, by.applyAsLong(b.metrics)));
+			if (best.size() > n) {
+				best.poll();
+			}
+		}
+		final List<BucketMetrics<K, E>> top = new ArrayList<BucketMetrics<K, E>>(best.size());
+		while (!best.isEmpty()) {
+			top.add(best.poll().metrics);
+		}
+		Collections.reverse(top);
+		return top;
+	}
+
+	private static final class Ranked<K, E> {
+		final BucketMetrics<K, E> metrics;
+		final long value;
+
+		Ranked(final BucketMetrics<K, E> metrics, final long value) {
+			this.metrics = metrics;
+			this.value = value;
+		}
+	}
+}
@@ -0,0 +1,372 @@
+package com.nerdynick.queue.blocking.bucket;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Array backed {@link BlockingQueue} sized for {@link Bucket}s, where there
+ * are many queues and most of them are small.
+ * <p>
+ * Elements are kept in a power-of-two ring buffer that is allocated on first
+ * use, grows by doubling and is dropped again when a large buffer empties. No
+ * per-element objects are allocated. Guarded by the queue's own monitor with no
+ * extra lock or condition objects, so an empty queue is a handful of fields.
+ * Waiters are only notified when one is actually blocked.
+ * 
+ * @author Nikoleta Verbeck
+ *
+ * @param <E> Type of Elements being stored
+ */
+public class RingBufferBlockingQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+	private static final int INITIAL_CAPACITY = 4;
+	/**
+	 * Buffers larger than this are released when the queue empties.
+	 */
+	private static final int RETAIN_CAPACITY = 64;
+
+	private final int limit;
+	private Object[] items;
+	private int head;
+	private int count;
+	private int waiters;
+
+	/**
+	 * Unbounded queue.
+	 */
+	public RingBufferBlockingQueue() {
+		this(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @param limit Max elements held
+	 */
+	public RingBufferBlockingQueue(final int limit) {
+		if (limit < 1) {
+			throw new IllegalArgumentException("Limit must be at least 1");
+		}
+		this.limit = limit;
+	}
+
+	@SuppressWarnings("unchecked")
+	private E itemAt(final int i) {
+		return (E) this.items[(this.head + i) & (this.items.length - 1)];
+	}
+
+	private void grow() {
+		if (this.items == null) {
+			this.items = new Object[INITIAL_CAPACITY];
+			return;
+		}
+		final Object[] grown = new Object[this.items.length << 1];
+		for (int i = 0; i < this.count; i++) {
+			grown[i] = this.itemAt(i);
+		}
+		this.items = grown;
+		this.head = 0;
+	}
+
+	private void enqueue(final E e) {
+		if (this.items == null || this.count == this.items.length) {
+			this.grow();
+		}
+		this.items[(this.head + this.count) & (this.items.length - 1)] = e;
+		this.count++;
+		if (this.waiters > 0) {
+			this.notifyAll();
+		}
+	}
+
+	private E dequeue() {
+		final E e = this.itemAt(0);
+		this.items[this.head] = null;
+		this.head = (this.head + 1) & (this.items.length - 1);
+		this.count--;
+		this.emptied();
+		return e;
+	}
+
+	/**
+	 * Releases large buffers once empty and wakes blocked producers after
+	 * elements were removed.
+	 */
+	private void emptied() {
+		if (this.count == 0) {
+			this.head = 0;
+			if (this.items.length > RETAIN_CAPACITY) {
+				this.items = null;
+			}
+		}
+		if (this.waiters > 0) {
+			this.notifyAll();
+		}
+	}
+
+	/**
+	 * Removes the element at logical index i, shifting the elements after it.
+	 */
+	private void removeAt(final int i) {
+		final int mask = this.items.length - 1;
+		for (int j = i; j < this.count - 1; j++) {
+			this.items[(this.head + j) & mask] = this.items[(this.head + j + 1) & mask];
+		}
+		this.items[(this.head + this.count - 1) & mask] = null;
+		this.count--;
+		this.emptied();
+	}
+
+	/**
+	 * Waits on the monitor, counted so notifiers can skip the notify when nobody
+	 * waits.
+	 * 
+	 * @param nanos Max nanoseconds to wait, 0 or less waits until notified
+	 */
+	private void await(final long nanos) throws InterruptedException {
+		this.waiters++;
+		try {
+			if (nanos <= 0) {
+				this.wait();
+			} else {
+				TimeUnit.NANOSECONDS.timedWait(this, nanos);
+			}
+		} finally {
+			this.waiters--;
+		}
+	}
+
+	@Override
+	public synchronized boolean offer(E e) {
+		if (e == null) {
+			throw new NullPointerException();
+		}
+		if (this.count >= this.limit) {
+			return false;
+		}
+		this.enqueue(e);
+		return true;
+	}
+
+	@Override
+	public synchronized void put(E e) throws InterruptedException {
+		if (e == null) {
+			throw new NullPointerException();
+		}
+		while (this.count >= this.limit) {
+			this.await(0);
+		}
+		this.enqueue(e);
+	}
+
+	@Override
+	public synchronized boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+		if (e == null) {
+			throw new NullPointerException();
+		}
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (this.count >= this.limit) {
+			final long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				return false;
+			}
+			this.await(remaining);
+		}
+		this.enqueue(e);
+		return true;
+	}
+
+	@Override
+	public synchronized E poll() {
+		return this.count == 0 ? null : this.dequeue();
+	}
+
+	@Override
+	public synchronized E take() throws InterruptedException {
+		while (this.count == 0) {
+			this.await(0);
+		}
+		return this.dequeue();
+	}
+
+	@Override
+	public synchronized E poll(long timeout, TimeUnit unit) throws InterruptedException {
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (this.count == 0) {
+			final long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				return null;
+			}
+			this.await(remaining);
+		}
+		return this.dequeue();
+	}
+
+	@Override
+	public synchronized E peek() {
+		return this.count == 0 ? null : this.itemAt(0);
+	}
+
+	@Override
+	public synchronized int size() {
+		return this.count;
+	}
+
+	@Override
+	public synchronized boolean isEmpty() {
+		return this.count == 0;
+	}
+
+	@Override
+	public synchronized int remainingCapacity() {
+		return this.limit - this.count;
+	}
+
+	@Override
+	public int drainTo(Collection<? super E> c) {
+		return this.drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public synchronized int drainTo(Collection<? super E> c, int maxElements) {
+		if (c == this) {
+			throw new IllegalArgumentException("Can not drain to self");
+		}
+		final int n = Math.min(maxElements, this.count);
+		if (n <= 0) {
+			return 0;
+		}
+		final int mask = this.items.length - 1;
+		try {
+			// Consume one at a time, so a collection refusing an element leaves it queued
+			for (int i = 0; i < n; i++) {
+				@SuppressWarnings("unchecked")
+				final E e = (E) this.items[this.head];
+				c.add(e);
+				this.items[this.head] = null;
+				this.head = (this.head + 1) & mask;
+				this.count--;
+			}
+		} finally {
+			this.emptied();
+		}
+		return n;
+	}
+
+	@Override
+	public synchronized boolean contains(Object o) {
+		if (o == null) {
+			return false;
+		}
+		for (int i = 0; i < this.count; i++) {
+			if (o.equals(this.itemAt(i))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public synchronized boolean remove(Object o) {
+		if (o == null) {
+			return false;
+		}
+		for (int i = 0; i < this.count; i++) {
+			if (o.equals(this.itemAt(i))) {
+				this.removeAt(i);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public synchronized boolean removeIf(Predicate<? super E> filter) {
+		// Compact in place, keeping order
+		int kept = 0;
+		for (int i = 0; i < this.count; i++) {
+			final E e = this.itemAt(i);
+			if (!filter.test(e)) {
+				this.items[(this.head + kept++) & (this.items.length - 1)] = e;
+			}
+		}
+		if (kept == this.count) {
+			return false;
+		}
+		for (int i = kept; i < this.count; i++) {
+			this.items[(this.head + i) & (this.items.length - 1)] = null;
+		}
+		this.count = kept;
+		this.emptied();
+		return true;
+	}
+
+	@Override
+	public synchronized void clear() {
+		if (this.count == 0) {
+			return;
+		}
+		for (int i = 0; i < this.count; i++) {
+			this.items[(this.head + i) & (this.items.length - 1)] = null;
+		}
+		this.count = 0;
+		this.emptied();
+	}
+
+	@Override
+	public synchronized Object[] toArray() {
+		final Object[] a = new Object[this.count];
+		for (int i = 0; i < this.count; i++) {
+			a[i] = this.itemAt(i);
+		}
+		return a;
+	}
+
+	/**
+	 * Weakly consistent iterator over a snapshot of the queue. Removal through
+	 * the iterator removes the first occurrence of the same instance, if it is
+	 * still queued.
+	 */
+	@Override
+	public Iterator<E> iterator() {
+		final Object[] snapshot = this.toArray();
+		return new Iterator<E>() {
+			int next = 0;
+			int last = -1;
+
+			@Override
+			public boolean hasNext() {
+				return this.next < snapshot.length;
+			}
+
+			@SuppressWarnings("unchecked")
+			@Override
+			public E next() {
+				if (this.next >= snapshot.length) {
+					throw new NoSuchElementException();
+				}
+				this.last = this.next++;
+				return (E) snapshot[this.last];
+			}
+
+			@Override
+			public void remove() {
+				if (this.last < 0) {
+					throw new IllegalStateException();
+				}
+				final Object o = snapshot[this.last];
+				this.last = -1;
+				synchronized (RingBufferBlockingQueue.this) {
+					for (int i = 0; i < RingBufferBlockingQueue.this.count; i++) {
+						if (RingBufferBlockingQueue.this.itemAt(i) == o) {
+							RingBufferBlockingQueue.this.removeAt(i);
+							return;
+						}
+					}
+				}
+			}
+		};
+	}
+}
@@ -0,0 +1,55 @@
+package com.nerdynick.queue.blocking.bucket;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * Plain round-robin {@link BucketScheduler}. Every bucket gets the same share
+ * regardless of its weight.
+ * 
+ * @author Nikoleta Verbeck
+ *
+ * @param <K> Type of the Bucketing Key
+ * @param <E> Type of Elements being stored in the bucketed queues
+ */
+public class RoundRobinScheduler<K, E> implements BucketScheduler<K, E> {
+	private final ConcurrentLinkedDeque<Bucket<K, E>> ready = new ConcurrentLinkedDeque<Bucket<K, E>>();
+	private final int quantum;
+
+	/**
+	 * @param quantum Max elements taken from a bucket per visit
+	 */
+	public RoundRobinScheduler(final int quantum) {
+		if (quantum < 1) {
+			throw new IllegalArgumentException("Quantum must be at least 1");
+		}
+		this.quantum = quantum;
+	}
+
+	@Override
+	public void add(Bucket<K, E> bucket) {
+		this.ready.offer(bucket);
+	}
+
+	@Override
+	public Bucket<K, E> next() {
+		return this.ready.poll();
+	}
+
+	@Override
+	public int quantum(Bucket<K, E> bucket) {
+		return this.quantum;
+	}
+
+	@Override
+	public void requeue(Bucket<K, E> bucket, int taken) {
+		this.ready.offer(bucket);
+	}
+
+	@Override
+	public void restore(Bucket<K, E> bucket) {
+		this.ready.offerFirst(bucket);
+	}
+
+	@Override
+	public void idle(Bucket<K, E> bucket) {}
+}
@@ -0,0 +1,92 @@
+package com.nerdynick.queue.blocking.bucket;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Holds claimed buckets whose sensor refused a take, ordered by when they
+ * become eligible again, like a {@link java.util.concurrent.DelayQueue}.
+ * <p>
+ * Parked buckets are out of the schedule entirely, so consumers never visit
+ * them while throttled. Checking for due buckets is a volatile read until one
+ * actually is due.
+ * 
+ * @author Nikoleta Verbeck
+ *
+ * @param <K> Type of the Bucketing Key
+ * @param <E> Type of Elements being stored in the bucketed queues
+ */
+final class ThrottledBuckets<K, E> {
+	private final PriorityQueue<Bucket<K, E>> heap = new PriorityQueue<Bucket<K, E>>(16,
+			(a, b) -> Long.signum(a.eligibleAt - b.eligibleAt));
+	private final ReentrantLock lock = new ReentrantLock();
+	private volatile int size;
+	private volatile long nextDue;
+
+	/**
+	 * @param b          Claimed bucket to park
+	 * @param eligibleAt {@link System#nanoTime()} the bucket is eligible at
+	 * @return True if the bucket is now the first due, so waiters need to
+	 *         shorten their wait
+	 */
+	boolean park(final Bucket<K, E> b, final long eligibleAt) {
+		this.lock.lock();
+		try {
+			b.eligibleAt = eligibleAt;
+			this.heap.add(b);
+			this.size = this.heap.size();
+			if (this.heap.peek() == b) {
+				this.nextDue = eligibleAt;
+				return true;
+			}
+			return false;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Hands every bucket that has become eligible to a callback.
+	 * 
+	 * @param now     Current {@link System#nanoTime()}
+	 * @param promote Callback for each due bucket
+	 * @return Number of buckets promoted
+	 */
+	int promote(final long now, final Consumer<Bucket<K, E>> promote) {
+		if (this.size == 0 || this.nextDue - now > 0) {
+			return 0;
+		}
+		int promoted = 0;
+		this.lock.lock();
+		try {
+			Bucket<K, E> b;
+			while ((b = this.heap.peek()) != null && b.eligibleAt - now <= 0) {
+				promote.accept(this.heap.poll());
+				promoted++;
+			}
+			if (b != null) {
+				this.nextDue = b.eligibleAt;
+			}
+			this.size = this.heap.size();
+		} finally {
+			this.lock.unlock();
+		}
+		return promoted;
+	}
+
+	/**
+	 * @return True if no buckets are parked
+	 */
+	boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	/**
+	 * @return {@link System#nanoTime()} the earliest parked bucket is eligible
+	 *         at. Only meaningful while not empty.
+	 */
+	long nextDue() {
+		return this.nextDue;
+	}
+}
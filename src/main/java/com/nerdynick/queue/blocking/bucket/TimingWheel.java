@@ -0,0 +1,91 @@
+package com.nerdynick.queue.blocking.bucket;
+
+import java.util.ArrayDeque;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel. Items are hashed into a slot by deadline and fired when
+ * the wheel advances past that slot, making both scheduling and firing O(1)
+ * per item.
+ * <p>
+ * Deadlines further out than the wheel's horizon are clamped to its last slot,
+ * so a fired item is not necessarily due. Callers are expected to check the
+ * item's real deadline and reschedule it when it isn't. Not thread safe, the
+ * owner guards all access.
+ * 
+ * @author Nikoleta Verbeck
+ *
+ * @param <T> Type of scheduled items
+ */
+final class TimingWheel<T> {
+	private final long tickNanos;
+	private final ArrayDeque<T>[] slots;
+	private final int mask;
+	private long currentTick;
+
+	/**
+	 * @param tickNanos Duration of a slot in nanoseconds
+	 * @param slotCount Number of slots, rounded up to a power of two
+	 * @param now       Current {@link com.nerdynick.gauges.Clock} time
+	 */
+	TimingWheel(final long tickNanos, final int slotCount, final long now) {
+		if (tickNanos < 1) {
+			throw new IllegalArgumentException("Tick must be at least 1ns");
+		}
+		final int size = Integer.highestOneBit(Math.max(2, slotCount - 1) << 1);
+		this.tickNanos = tickNanos;
+		@SuppressWarnings("unchecked")
+		final ArrayDeque<T>[] slots = (ArrayDeque<T>[]) new ArrayDeque<?>[size];
+		this.slots = slots;
+		for (int i = 0; i < size; i++) {
+			this.slots[i] = new ArrayDeque<T>(4);
+		}
+		this.mask = size - 1;
+		this.currentTick = Math.floorDiv(now, tickNanos);
+	}
+
+	long tickNanos() {
+		return this.tickNanos;
+	}
+
+	/**
+	 * @return Time at which the next slot becomes due
+	 */
+	long nextTickTime() {
+		return (this.currentTick + 1) * this.tickNanos;
+	}
+
+	/**
+	 * @param item     Item to schedule
+	 * @param deadline {@link com.nerdynick.gauges.Clock} time to fire the item at
+	 */
+	void schedule(final T item, final long deadline) {
+		// Fire on the first tick at or after the deadline, within the horizon
+		long tick = Math.floorDiv(deadline + this.tickNanos - 1, this.tickNanos);
+		tick = Math.max(tick, this.currentTick + 1);
+		tick = Math.min(tick, this.currentTick + this.slots.length - 1);
+		this.slots[(int) (tick & this.mask)].add(item);
+	}
+
+	/**
+	 * Advances the wheel to now, firing every item in the passed slots. Fired
+	 * items may be rescheduled from within the callback.
+	 * 
+	 * @param now   Current {@link com.nerdynick.gauges.Clock} time
+	 * @param fired Callback for each fired item
+	 */
+	void advance(final long now, final Consumer<T> fired) {
+		final long target = Math.floorDiv(now, this.tickNanos);
+		if (target - this.currentTick > this.slots.length) {
+			// Every slot gets visited once, no need to walk each missed rotation
+			this.currentTick = target - this.slots.length;
+		}
+		while (this.currentTick < target) {
+			this.currentTick++;
+			final ArrayDeque<T> slot = this.slots[(int) (this.currentTick & this.mask)];
+			for (int n = slot.size(); n > 0; n--) {
+				fired.accept(slot.poll());
+			}
+		}
+	}
+}
@@ -0,0 +1,294 @@
+package com.nerdynick.queue.blocking.bucket.durable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.nerdynick.queue.blocking.bucket.BucketedBlockingQueue;
+
+/**
+ * Durable storage for the buckets of a {@link BucketedBlockingQueue}. Each key
+ * gets a directory of memory-mapped segment files its elements are appended
+ * to, so adding an element is a serialize and a copy into mapped memory with no
+ * system call. A background thread forces what was written to disk every
+ * commit interval, grouping the fsyncs of all elements added in between.
+ * <p>
+ * Opening a store scans the existing bucket directories and recovers the
+ * elements not yet taken. Hand those keys to the queue so their buckets are
+ * scheduled again:
+ *
+ * <pre>
+ * MappedBucketStore&lt;String, Order&gt; store = new MappedBucketStore&lt;&gt;(dir, Serializer.utf8(), orderSerializer);
+ * BucketedBlockingQueue&lt;String, Order&gt; queue = BucketedBlockingQueue.&lt;String, Order&gt;builder(Order::getCustomer)
+ * 		.queueFactory(store::queue)
+ * 		.preload(store.recoveredKeys())
+ * 		.build();
+ * </pre>
+ *
+ * Delivery is at least once: elements taken since the last commit are
+ * delivered again after a crash, and elements added since the last commit can
+ * be lost unless {@link #commit()} is called before relying on them. A key's
+ * queue outlives its bucket, a bucket expired by
+ * {@link BucketedBlockingQueue.Builder#expireAfterAccess} picks its elements up
+ * again when the key comes back. The store only holds a key's queue weakly,
+ * so once its bucket is expired and nothing else uses it, the garbage collector
+ * unmaps it and the next {@link #queue(Object)} reopens it. Directory names
+ * hold the hex of the key's bytes, so keys should serialize to at most 126
+ * bytes.
+ *
+ * @author Nikoleta Verbeck
+ *
+ * @param <K> Type of the Bucketing Key
+ * @param <E> Type of Elements being stored
+ */
+public class MappedBucketStore<K, E> implements Closeable {
+	private static final Logger LOG = LoggerFactory.getLogger(MappedBucketStore.class);
+
+	public static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+	public static final long DEFAULT_COMMIT_MILLIS = 10;
+	/**
+	 * Prefix of bucket directory names, keeping empty keys from naming the store
+	 * directory itself.
+	 */
+	private static final String BUCKET_PREFIX = "k";
+
+	private final File dir;
+	private final Serializer<K> keySerializer;
+	private final Serializer<E> serializer;
+	private final int segmentSize;
+	private final long commitNanos;
+
+	/**
+	 * Open queues, weakly held. A queue with uncommitted writes is also held by
+	 * {@link #dirty}, so only fully committed queues are ever collected.
+	 */
+	private final ConcurrentHashMap<K, QueueRef<K, E>> queues = new ConcurrentHashMap<K, QueueRef<K, E>>();
+	private final ReferenceQueue<MappedSegmentQueue<E>> collected = new ReferenceQueue<MappedSegmentQueue<E>>();
+	/**
+	 * Recovered queues holding elements, kept open until first asked for.
+	 */
+	private final ConcurrentHashMap<K, MappedSegmentQueue<E>> unclaimed = new ConcurrentHashMap<K, MappedSegmentQueue<E>>();
+	private final Set<K> recovered;
+	/**
+	 * Queues written to since the last commit.
+	 */
+	private final ConcurrentLinkedQueue<MappedSegmentQueue<?>> dirty = new ConcurrentLinkedQueue<MappedSegmentQueue<?>>();
+	private final Thread committer;
+	private volatile boolean closed;
+
+	private static final class QueueRef<K, E> extends WeakReference<MappedSegmentQueue<E>> {
+		final K key;
+
+		QueueRef(final K key, final MappedSegmentQueue<E> queue, final ReferenceQueue<MappedSegmentQueue<E>> collected) {
+			super(queue, collected);
+			this.key = key;
+		}
+	}
+
+	/**
+	 * @param dir           Directory of the store, created if missing
+	 * @param keySerializer {@link Serializer} for the keys
+	 * @param serializer    {@link Serializer} for the elements
+	 */
+	public MappedBucketStore(final File dir, final Serializer<K> keySerializer, final Serializer<E> serializer)
+			throws IOException {
+		this(dir, keySerializer, serializer, DEFAULT_SEGMENT_SIZE, DEFAULT_COMMIT_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param dir            Directory of the store, created if missing
+	 * @param keySerializer  {@link Serializer} for the keys
+	 * @param serializer     {@link Serializer} for the elements
+	 * @param segmentSize    Bytes per segment file. Larger elements get a
+	 *                       segment of their own.
+	 * @param commitInterval Time between group commits, 0 or less only commits
+	 *                       on {@link #commit()} and {@link #close()}. Consumed
+	 *                       segments are only removed by a commit.
+	 * @param commitUnit     {@link TimeUnit} of commitInterval
+	 */
+	public MappedBucketStore(final File dir, final Serializer<K> keySerializer, final Serializer<E> serializer,
+			final int segmentSize, final long commitInterval, final TimeUnit commitUnit) throws IOException {
+		if (segmentSize < 64) {
+			throw new IllegalArgumentException("Segment size must be at least 64 bytes");
+		}
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Unable to create " + dir);
+		}
+		this.dir = dir;
+		this.keySerializer = keySerializer;
+		this.serializer = serializer;
+		this.segmentSize = segmentSize;
+		this.commitNanos = commitUnit.toNanos(commitInterval);
+
+		final File[] bucketDirs = dir.listFiles(f -> f.isDirectory() && f.getName().startsWith(BUCKET_PREFIX));
+		if (bucketDirs == null) {
+			throw new IOException("Unable to list " + dir);
+		}
+		final Set<K> recovered = new LinkedHashSet<K>();
+		for (File bucketDir : bucketDirs) {
+			final String name = bucketDir.getName().substring(BUCKET_PREFIX.length());
+			final K key = keySerializer.fromBytes(ByteBuffer.wrap(unhex(name)));
+			final MappedSegmentQueue<E> queue = new MappedSegmentQueue<E>(bucketDir, serializer, segmentSize, this);
+			if (!queue.isEmpty()) {
+				recovered.add(key);
+				this.unclaimed.put(key, queue);
+				this.queues.put(key, new QueueRef<K, E>(key, queue, this.collected));
+			}
+		}
+		this.recovered = Collections.unmodifiableSet(recovered);
+
+		if (this.commitNanos > 0) {
+			this.committer = new Thread(this::runCommits, "mapped-bucket-store-commit");
+			this.committer.setDaemon(true);
+			this.committer.start();
+		} else {
+			this.committer = null;
+		}
+	}
+
+	/**
+	 * Their queues stay open until first asked for.
+	 *
+	 * @return Keys that held elements when the store was opened, for
+	 *         {@link BucketedBlockingQueue.Builder#preload(Iterable)}
+	 */
+	public Set<K> recoveredKeys() {
+		return this.recovered;
+	}
+
+	/**
+	 * The key's durable queue, the same one for as long as anything uses it.
+	 * Meant as a {@link BucketedBlockingQueue.Builder#queueFactory} method
+	 * reference.
+	 *
+	 * @param key Bucketing key
+	 * @return {@link BlockingQueue} stored in the key's directory
+	 * @throws UncheckedIOException If the directory couldn't be opened
+	 */
+	public BlockingQueue<E> queue(final K key) {
+		this.purge();
+		final MappedSegmentQueue<E> recovered = this.unclaimed.remove(key);
+		if (recovered != null) {
+			return recovered;
+		}
+		final QueueRef<K, E> ref = this.queues.get(key);
+		final MappedSegmentQueue<E> live = ref == null ? null : ref.get();
+		if (live != null) {
+			return live;
+		}
+		// Open inside the key's compute so the directory is never opened twice.
+		// The holder keeps the new queue reachable until it is returned.
+		final List<MappedSegmentQueue<E>> opened = new ArrayList<MappedSegmentQueue<E>>(1);
+		this.queues.compute(key, (k, current) -> {
+			final MappedSegmentQueue<E> queue = current == null ? null : current.get();
+			if (queue != null) {
+				opened.add(queue);
+				return current;
+			}
+			try {
+				opened.add(new MappedSegmentQueue<E>(new File(this.dir, BUCKET_PREFIX + hex(this.keySerializer.toBytes(k))),
+						this.serializer, this.segmentSize, this));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return new QueueRef<K, E>(k, opened.get(0), this.collected);
+		});
+		return opened.get(0);
+	}
+
+	/**
+	 * Drops the entries of queues the garbage collector has unmapped.
+	 */
+	private void purge() {
+		Reference<? extends MappedSegmentQueue<E>> ref;
+		while ((ref = this.collected.poll()) != null) {
+			final QueueRef<?, ?> queueRef = (QueueRef<?, ?>) ref;
+			this.queues.remove(queueRef.key, queueRef);
+		}
+	}
+
+	void dirty(final MappedSegmentQueue<?> queue) {
+		this.dirty.offer(queue);
+	}
+
+	/**
+	 * Forces everything added and taken so far to disk, without waiting for the
+	 * next group commit. Waits for a group commit already in progress.
+	 */
+	public synchronized void commit() {
+		MappedSegmentQueue<?> queue;
+		while ((queue = this.dirty.poll()) != null) {
+			queue.force();
+		}
+		this.purge();
+	}
+
+	private void runCommits() {
+		while (!this.closed) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(this.commitNanos);
+			} catch (InterruptedException e) {
+				break;
+			}
+			try {
+				this.commit();
+			} catch (RuntimeException e) {
+				LOG.error("Group commit failed", e);
+			}
+		}
+	}
+
+	/**
+	 * Stops the group commits and commits one last time. The queues stay usable
+	 * but nothing is forced to disk any more.
+	 */
+	@Override
+	public void close() {
+		this.closed = true;
+		if (this.committer != null) {
+			this.committer.interrupt();
+			try {
+				this.committer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		this.commit();
+	}
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static String hex(final byte[] bytes) {
+		final char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+			chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(chars);
+	}
+
+	private static byte[] unhex(final String hex) {
+		final byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,666 @@
+package com.nerdynick.queue.blocking.bucket.durable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+/**
+ * Unbounded {@link BlockingQueue} for one bucket of a {@link MappedBucketStore},
+ * appending elements to memory-mapped segment files in the bucket's directory.
+ * <p>
+ * A record is its length plus one, a CRC32 of the segment's sequence and the
+ * record's bytes, and the bytes. It is always followed by a zero int ending the
+ * segment's records until the next append overwrites it. The length is written
+ * last, so a record is only seen once complete, and the sequence in the CRC
+ * keeps records left over from a recycled segment's previous use from passing
+ * as its own, whatever order its pages reach the disk in. Taking advances a
+ * read position, stored together with its segment's sequence as one long in a
+ * small mapped offset file. Segments the reader has passed are deleted once
+ * the offset past them is committed, except one that is kept and renamed to
+ * become the next segment instead of mapping a new file.
+ * <p>
+ * The element path never forces anything to disk, the store forces the dirty
+ * segments and offset in group commits. After a crash, elements added since the
+ * last commit can be lost and elements taken since the last commit are
+ * delivered again. Segment files created or renamed since the last commit
+ * have their directory forced before the offset, so a committed offset never
+ * points into a segment that a crash could lose. Guarded by the queue's own
+ * monitor like
+ * {@link com.nerdynick.queue.blocking.bucket.RingBufferBlockingQueue}.
+ *
+ * @author Nikoleta Verbeck
+ *
+ * @param <E> Type of Elements being stored
+ */
+final class MappedSegmentQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+	static final String SEGMENT_SUFFIX = ".seg";
+	static final String OFFSET_FILE = "read.off";
+	/**
+	 * Length plus one and CRC32.
+	 */
+	private static final int HEADER = 8;
+	/**
+	 * Zero int after the last record.
+	 */
+	private static final int END_MARKER = 4;
+
+	private static final class Segment {
+		final long seq;
+		final File file;
+		final MappedByteBuffer buf;
+		/**
+		 * Sequence as bytes, for the record checksums.
+		 */
+		final byte[] seqBytes;
+		/**
+		 * End of the segment's records, where the next one is appended.
+		 */
+		int end;
+		/**
+		 * Written since the last commit.
+		 */
+		boolean dirty;
+
+		Segment(final long seq, final File file, final MappedByteBuffer buf) {
+			this.seq = seq;
+			this.file = file;
+			this.buf = buf;
+			this.seqBytes = ByteBuffer.allocate(Long.BYTES).putLong(seq).array();
+		}
+	}
+
+	private final File dir;
+	private final Serializer<E> serializer;
+	private final int segmentSize;
+	private final MappedBucketStore<?, ?> store;
+	private final MappedByteBuffer offset;
+	private final CRC32 crc = new CRC32();
+
+	/**
+	 * Segments from the reader's to the one being appended to.
+	 */
+	private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+	private Segment spare;
+	/**
+	 * Segments the reader has passed, deleted or recycled by the next commit
+	 * once the offset past them is on disk.
+	 */
+	private final List<Segment> passed = new ArrayList<Segment>();
+	private long nextSeq;
+	private int readPos;
+	private int count;
+	private int waiters;
+
+	private final List<Segment> written = new ArrayList<Segment>();
+	private boolean offsetDirty;
+	/**
+	 * Segment files were created or renamed since the last commit.
+	 */
+	private boolean dirDirty;
+	/**
+	 * The directory itself was created and isn't forced into its parent yet.
+	 */
+	private boolean parentDirty;
+	/**
+	 * Waiting for the store's next commit.
+	 */
+	private boolean dirty;
+
+	/**
+	 * Opens the bucket's directory, recovering any elements left in it.
+	 *
+	 * @param dir         Directory of the bucket, created if missing
+	 * @param serializer  {@link Serializer} for the elements
+	 * @param segmentSize Bytes per segment file
+	 * @param store       {@link MappedBucketStore} committing this queue
+	 */
+	MappedSegmentQueue(final File dir, final Serializer<E> serializer, final int segmentSize,
+			final MappedBucketStore<?, ?> store) throws IOException {
+		if (!dir.isDirectory()) {
+			if (!dir.mkdirs()) {
+				throw new IOException("Unable to create " + dir);
+			}
+			this.parentDirty = true;
+			this.dirDirty = true;
+		}
+		this.dir = dir;
+		this.serializer = serializer;
+		this.segmentSize = segmentSize;
+		this.store = store;
+		this.offset = map(new File(dir, OFFSET_FILE), Long.BYTES);
+
+		final long read = this.offset.getLong(0);
+		final long readSeq = read >>> 32;
+		final int readPos = (int) read;
+		final File[] files = dir.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+		if (files == null) {
+			throw new IOException("Unable to list " + dir);
+		}
+		// Fixed width hex names, so name order is sequence order
+		Arrays.sort(files);
+		for (File file : files) {
+			final String name = file.getName();
+			final long seq = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()), 16);
+			if (seq < readSeq) {
+				// Consumed before the crash, but not yet deleted
+				file.delete();
+				continue;
+			}
+			final Segment s = new Segment(seq, file, map(file, (int) file.length()));
+			final int from = seq == readSeq ? readPos : 0;
+			s.end = this.scan(s, from);
+			if (this.segments.isEmpty()) {
+				this.readPos = Math.min(from, s.end);
+			}
+			this.segments.addLast(s);
+			this.nextSeq = seq + 1;
+		}
+		this.nextSeq = Math.max(this.nextSeq, readSeq + 1);
+	}
+
+	/**
+	 * Forces a directory's entries to disk, making files created or renamed in it
+	 * durable.
+	 */
+	private static void forceDir(final File dir) throws IOException {
+		try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+			channel.force(true);
+		}
+	}
+
+	private static MappedByteBuffer map(final File file, final int size) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			if (raf.length() < size) {
+				raf.setLength(size);
+			}
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+	}
+
+	private File segmentFile(final long seq) {
+		return new File(this.dir, String.format("%016x", seq) + SEGMENT_SUFFIX);
+	}
+
+	/**
+	 * Counts the intact records of a recovered segment.
+	 *
+	 * @return End of the last intact record
+	 */
+	private int scan(final Segment s, int pos) {
+		final MappedByteBuffer buf = s.buf;
+		while (pos + HEADER <= buf.capacity()) {
+			final int len = buf.getInt(pos) - 1;
+			if (len < 0 || len > buf.capacity() - pos - HEADER) {
+				break;
+			}
+			this.crc.reset();
+			this.crc.update(s.seqBytes, 0, s.seqBytes.length);
+			this.crc.update(this.bytes(s, pos, len));
+			if ((int) this.crc.getValue() != buf.getInt(pos + 4)) {
+				break;
+			}
+			pos += HEADER + len;
+			this.count++;
+		}
+		return pos;
+	}
+
+	private ByteBuffer bytes(final Segment s, final int pos, final int len) {
+		final ByteBuffer bytes = s.buf.duplicate();
+		bytes.limit(pos + HEADER + len);
+		bytes.position(pos + HEADER);
+		return bytes;
+	}
+
+	private void append(final E e) {
+		final byte[] bytes = this.serializer.toBytes(e);
+		final int need = HEADER + bytes.length + END_MARKER;
+		Segment tail = this.segments.peekLast();
+		if (tail == null || tail.buf.capacity() - tail.end < need) {
+			tail = this.roll(need);
+		}
+		final MappedByteBuffer buf = tail.buf;
+		final int pos = tail.end;
+		buf.putInt(pos + HEADER + bytes.length, 0);
+		buf.position(pos + HEADER);
+		buf.put(bytes);
+		this.crc.reset();
+		this.crc.update(tail.seqBytes, 0, tail.seqBytes.length);
+		this.crc.update(bytes, 0, bytes.length);
+		buf.putInt(pos + 4, (int) this.crc.getValue());
+		buf.putInt(pos, bytes.length + 1);
+		tail.end = pos + HEADER + bytes.length;
+		this.count++;
+		this.written(tail);
+		if (this.waiters > 0) {
+			this.notifyAll();
+		}
+	}
+
+	/**
+	 * Starts a new segment, recycling the spare one when it is large enough.
+	 *
+	 * @param need Bytes the next record needs
+	 */
+	private Segment roll(final int need) {
+		final long seq = this.nextSeq++;
+		final File file = this.segmentFile(seq);
+		final int size = Math.max(this.segmentSize, need);
+		final Segment spare = this.spare;
+		this.spare = null;
+		final Segment s;
+		if (spare != null && spare.buf.capacity() >= size && spare.file.renameTo(file)) {
+			s = new Segment(seq, file, spare.buf);
+			// Hide the records of its previous use, which also fail its checksums
+			s.buf.putInt(0, 0);
+		} else {
+			if (spare != null) {
+				spare.file.delete();
+			}
+			try {
+				s = new Segment(seq, file, map(file, size));
+			} catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+		}
+		this.dirDirty = true;
+		if (this.segments.isEmpty()) {
+			this.readPos = 0;
+			this.saveOffset(seq);
+		}
+		this.segments.addLast(s);
+		return s;
+	}
+
+	/**
+	 * Moves the reader past segments it has fully consumed. Only called while
+	 * there are elements.
+	 *
+	 * @return Segment of the next element
+	 */
+	private Segment head() {
+		Segment h = this.segments.peekFirst();
+		while (this.readPos >= h.end && h != this.segments.peekLast()) {
+			this.passed.add(this.segments.pollFirst());
+			h = this.segments.peekFirst();
+			this.readPos = 0;
+			this.saveOffset(h.seq);
+		}
+		return h;
+	}
+
+	private void retire(final Segment s) {
+		if (this.spare == null && s.buf.capacity() == this.segmentSize) {
+			this.spare = s;
+		} else {
+			s.file.delete();
+		}
+	}
+
+	private E dequeue() {
+		final Segment h = this.head();
+		final int len = h.buf.getInt(this.readPos) - 1;
+		final E e = this.serializer.fromBytes(this.bytes(h, this.readPos, len));
+		this.readPos += HEADER + len;
+		this.count--;
+		this.saveOffset(h.seq);
+		return e;
+	}
+
+	/**
+	 * Consumes elements without reading them.
+	 */
+	private void skip(int n) {
+		if (n <= 0) {
+			return;
+		}
+		Segment h = null;
+		while (n-- > 0) {
+			h = this.head();
+			this.readPos += HEADER + h.buf.getInt(this.readPos) - 1;
+			this.count--;
+		}
+		this.saveOffset(h.seq);
+	}
+
+	private void saveOffset(final long seq) {
+		this.offset.putLong(0, seq << 32 | this.readPos);
+		this.offsetDirty = true;
+		this.markDirty();
+	}
+
+	private void written(final Segment s) {
+		if (!s.dirty) {
+			s.dirty = true;
+			this.written.add(s);
+		}
+		this.markDirty();
+	}
+
+	private void markDirty() {
+		if (!this.dirty) {
+			this.dirty = true;
+			this.store.dirty(this);
+		}
+	}
+
+	/**
+	 * Forces what was written since the last commit to disk, then retires the
+	 * segments the forced offset has passed. Called by the store, without
+	 * holding the monitor while forcing.
+	 *
+	 * @throws UncheckedIOException If the directory couldn't be forced, leaving
+	 *                              the offset for the next commit
+	 */
+	void force() {
+		final Segment[] segments;
+		final boolean offset;
+		final boolean dir;
+		final boolean parent;
+		final Segment[] passed;
+		synchronized (this) {
+			this.dirty = false;
+			segments = this.written.toArray(new Segment[this.written.size()]);
+			this.written.clear();
+			for (Segment s : segments) {
+				s.dirty = false;
+			}
+			offset = this.offsetDirty;
+			this.offsetDirty = false;
+			dir = this.dirDirty;
+			this.dirDirty = false;
+			parent = this.parentDirty;
+			this.parentDirty = false;
+			passed = this.passed.toArray(new Segment[this.passed.size()]);
+			this.passed.clear();
+		}
+		for (Segment s : segments) {
+			s.buf.force();
+		}
+		try {
+			if (dir) {
+				forceDir(this.dir);
+			}
+			if (parent) {
+				forceDir(this.dir.getParentFile());
+			}
+		} catch (IOException e) {
+			synchronized (this) {
+				this.offsetDirty |= offset;
+				this.dirDirty |= dir;
+				this.parentDirty |= parent;
+				this.passed.addAll(0, Arrays.asList(passed));
+				this.markDirty();
+			}
+			throw new UncheckedIOException(e);
+		}
+		if (offset) {
+			this.offset.force();
+		}
+		if (passed.length > 0) {
+			synchronized (this) {
+				for (Segment s : passed) {
+					this.retire(s);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads every queued element, oldest first, without consuming them.
+	 */
+	private void forEachQueued(final Consumer<? super E> action) {
+		boolean first = true;
+		for (Segment s : this.segments) {
+			int pos = first ? this.readPos : 0;
+			first = false;
+			while (pos < s.end) {
+				final int len = s.buf.getInt(pos) - 1;
+				action.accept(this.serializer.fromBytes(this.bytes(s, pos, len)));
+				pos += HEADER + len;
+			}
+		}
+	}
+
+	/**
+	 * Waits on the monitor, counted so notifiers can skip the notify when nobody
+	 * waits.
+	 *
+	 * @param nanos Max nanoseconds to wait, 0 or less waits until notified
+	 */
+	private void await(final long nanos) throws InterruptedException {
+		this.waiters++;
+		try {
+			if (nanos <= 0) {
+				this.wait();
+			} else {
+				TimeUnit.NANOSECONDS.timedWait(this, nanos);
+			}
+		} finally {
+			this.waiters--;
+		}
+	}
+
+	/**
+	 * Never refuses, the queue is only bounded by disk space.
+	 *
+	 * @throws UncheckedIOException If a new segment couldn't be created
+	 */
+	@Override
+	public synchronized boolean offer(E e) {
+		if (e == null) {
+			throw new NullPointerException();
+		}
+		this.append(e);
+		return true;
+	}
+
+	@Override
+	public void put(E e) {
+		this.offer(e);
+	}
+
+	@Override
+	public boolean offer(E e, long timeout, TimeUnit unit) {
+		return this.offer(e);
+	}
+
+	@Override
+	public synchronized E poll() {
+		return this.count == 0 ? null : this.dequeue();
+	}
+
+	@Override
+	public synchronized E take() throws InterruptedException {
+		while (this.count == 0) {
+			this.await(0);
+		}
+		return this.dequeue();
+	}
+
+	@Override
+	public synchronized E poll(long timeout, TimeUnit unit) throws InterruptedException {
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (this.count == 0) {
+			final long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				return null;
+			}
+			this.await(remaining);
+		}
+		return this.dequeue();
+	}
+
+	@Override
+	public synchronized E peek() {
+		if (this.count == 0) {
+			return null;
+		}
+		final Segment h = this.head();
+		return this.serializer.fromBytes(this.bytes(h, this.readPos, h.buf.getInt(this.readPos) - 1));
+	}
+
+	@Override
+	public synchronized int size() {
+		return this.count;
+	}
+
+	@Override
+	public synchronized boolean isEmpty() {
+		return this.count == 0;
+	}
+
+	@Override
+	public int remainingCapacity() {
+		return Integer.MAX_VALUE;
+	}
+
+	@Override
+	public int drainTo(Collection<? super E> c) {
+		return this.drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public synchronized int drainTo(Collection<? super E> c, int maxElements) {
+		if (c == this) {
+			throw new IllegalArgumentException("Can not drain to self");
+		}
+		int n = 0;
+		Segment h = null;
+		try {
+			while (n < maxElements && this.count > 0) {
+				h = this.head();
+				final int len = h.buf.getInt(this.readPos) - 1;
+				// Only consume an element once c has it, so a throwing c keeps the rest
+				c.add(this.serializer.fromBytes(this.bytes(h, this.readPos, len)));
+				this.readPos += HEADER + len;
+				this.count--;
+				n++;
+			}
+		} finally {
+			if (n > 0) {
+				this.saveOffset(h.seq);
+			}
+		}
+		return n;
+	}
+
+	@Override
+	public synchronized boolean contains(Object o) {
+		if (o == null) {
+			return false;
+		}
+		for (Object e : this.toArray()) {
+			if (o.equals(e)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Removes the first equal element. Rewrites the queue, see
+	 * {@link #removeIf(Predicate)}.
+	 */
+	@Override
+	public synchronized boolean remove(Object o) {
+		if (o == null) {
+			return false;
+		}
+		final boolean[] found = new boolean[1];
+		return this.removeIf(e -> !found[0] && (found[0] = o.equals(e)));
+	}
+
+	/**
+	 * Appends the elements to keep again before consuming the old ones, so a
+	 * crash part way delivers elements twice rather than losing them. Costs a
+	 * rewrite of the whole queue.
+	 */
+	@Override
+	public synchronized boolean removeIf(Predicate<? super E> filter) {
+		final List<E> kept = new ArrayList<E>(this.count);
+		final int n = this.count;
+		this.forEachQueued(e -> {
+			if (!filter.test(e)) {
+				kept.add(e);
+			}
+		});
+		if (kept.size() == n) {
+			return false;
+		}
+		for (E e : kept) {
+			this.append(e);
+		}
+		this.skip(n);
+		return true;
+	}
+
+	@Override
+	public synchronized void clear() {
+		this.skip(this.count);
+	}
+
+	@Override
+	public synchronized Object[] toArray() {
+		final List<E> els = new ArrayList<E>(this.count);
+		this.forEachQueued(els::add);
+		return els.toArray();
+	}
+
+	/**
+	 * Weakly consistent iterator over a snapshot of the queue. Elements are read
+	 * back from their bytes, so removal through the iterator removes the first
+	 * equal element, if it is still queued.
+	 */
+	@Override
+	public Iterator<E> iterator() {
+		final Object[] snapshot = this.toArray();
+		return new Iterator<E>() {
+			int next = 0;
+			int last = -1;
+
+			@Override
+			public boolean hasNext() {
+				return this.next < snapshot.length;
+			}
+
+			@SuppressWarnings("unchecked")
+			@Override
+			public E next() {
+				if (this.next >= snapshot.length) {
+					throw new NoSuchElementException();
+				}
+				this.last = this.next++;
+				return (E) snapshot[this.last];
+			}
+
+			@Override
+			public void remove() {
+				if (this.last < 0) {
+					throw new IllegalStateException();
+				}
+				final Object o = snapshot[this.last];
+				this.last = -1;
+				MappedSegmentQueue.this.remove(o);
+			}
+		};
+	}
+}
@@ -0,0 +1,60 @@
+package com.nerdynick.queue.blocking.bucket.durable;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Converts values to and from the bytes stored by a {@link MappedBucketStore}.
+ *
+ * @author Nikoleta Verbeck
+ *
+ * @param <T> Type of value
+ */
+public interface Serializer<T> {
+	/**
+	 * @param value Value to store, never null
+	 * @return Bytes of the value
+	 */
+	byte[] toBytes(T value);
+
+	/**
+	 * @param bytes Stored bytes, from position to limit. Only valid for the
+	 *              duration of the call, copy anything that is kept.
+	 * @return Value
+	 */
+	T fromBytes(ByteBuffer bytes);
+
+	/**
+	 * @return {@link Serializer} for UTF-8 {@link String}s
+	 */
+	static Serializer<String> utf8() {
+		return new Serializer<String>() {
+			@Override
+			public byte[] toBytes(String value) {
+				return value.getBytes(StandardCharsets.UTF_8);
+			}
+
+			@Override
+			public String fromBytes(ByteBuffer bytes) {
+				return StandardCharsets.UTF_8.decode(bytes).toString();
+			}
+		};
+	}
+
+	/**
+	 * @return {@link Serializer} for {@link Long}s
+	 */
+	static Serializer<Long> longs() {
+		return new Serializer<Long>() {
+			@Override
+			public byte[] toBytes(Long value) {
+				return ByteBuffer.allocate(Long.BYTES).putLong(0, value).array();
+			}
+
+			@Override
+			public Long fromBytes(ByteBuffer bytes) {
+				return bytes.getLong(bytes.position());
+			}
+		};
+	}
+}
@@ -0,0 +1,424 @@
+package com.nerdynick.queue.blocking.bucket.executor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import com.nerdynick.queue.blocking.bucket.Bucket;
+import com.nerdynick.queue.blocking.bucket.BucketLease;
+import com.nerdynick.queue.blocking.bucket.BucketedBlockingQueue;
+import com.nerdynick.queue.blocking.bucket.sensor.BucketSensor;
+import com.nerdynick.queue.blocking.bucket.sensor.NullSensor;
+
+/**
+ * {@link java.util.concurrent.ExecutorService} running tasks from a
+ * {@link BucketedBlockingQueue}, so each key gets a fair share of the workers
+ * and can be rate limited by its {@link BucketSensor}.
+ * <p>
+ * With serial per key, a worker leases a key's bucket and runs its tasks in
+ * submission order, and no other worker runs that key's tasks meanwhile. Keys
+ * still run in parallel with each other, without a thread per key.
+ * <p>
+ * Workers are created up front by the {@link ThreadFactory}. On Java 21 and
+ * later passing {@code Thread.ofVirtual().factory()} with a large thread count
+ * runs every worker on a virtual thread.
+ * 
+ * @author Nikoleta Verbeck
+ *
+ * @param <K> Type of the Bucketing Key
+ */
+public class BucketedExecutorService<K> extends AbstractExecutorService {
+	private static final int RUNNING = 0;
+	private static final int SHUTDOWN = 1;
+	private static final int STOP = 2;
+	/**
+	 * How long a worker waits per attempt while finishing off the queue after
+	 * shutdown, so it notices when the last task has been taken elsewhere.
+	 */
+	private static final long SHUTDOWN_POLL_MILLIS = 10;
+
+	private final BucketedBlockingQueue<K, Runnable> queue;
+	private final Function<Object, K> keyOf;
+	private final boolean serialPerKey;
+	private final List<Worker> workers;
+	private final CountDownLatch terminated;
+	private volatile int state = RUNNING;
+
+	@SuppressWarnings("unchecked")
+	protected BucketedExecutorService(final Builder<K> builder) {
+		this.keyOf = builder.keyOf;
+		this.serialPerKey = builder.serialPerKey;
+		this.queue = BucketedBlockingQueue.<K, Runnable>builder(r -> ((KeyedTask<K>) r).key)
+				.bucketSensor(builder.bucketSensor)
+				.drainQuantum(builder.drainQuantum)
+				.expireAfterAccess(builder.expireIdleTime, builder.expireIdleUnit)
+				.build();
+
+		this.terminated = new CountDownLatch(builder.threads);
+		this.workers = new ArrayList<Worker>(builder.threads);
+		for (int i = 0; i < builder.threads; i++) {
+			final Worker w = new Worker();
+			w.thread = builder.threadFactory.newThread(w);
+			if (w.thread == null) {
+				throw new IllegalStateException("ThreadFactory didn't create a thread");
+			}
+			this.workers.add(w);
+		}
+		for (Worker w : this.workers) {
+			w.thread.start();
+		}
+	}
+
+	/**
+	 * Builder for a {@link BucketedExecutorService}.
+	 * 
+	 * @param <K> Type of the Bucketing Key
+	 */
+	public static class Builder<K> {
+		private final Function<Object, K> keyOf;
+		private int threads = Runtime.getRuntime().availableProcessors();
+		private ThreadFactory threadFactory = Executors.defaultThreadFactory();
+		private boolean serialPerKey = false;
+		private BiFunction<K, Bucket<K, Runnable>, BucketSensor> bucketSensor = (k, b) -> NullSensor.instance();
+		private int drainQuantum = 64;
+		private long expireIdleTime = 1;
+		private TimeUnit expireIdleUnit = TimeUnit.MINUTES;
+
+		protected Builder(final Function<Object, K> keyOf) {
+			this.keyOf = keyOf;
+		}
+
+		/**
+		 * @param threads Number of workers
+		 * @return this
+		 */
+		public Builder<K> threads(final int threads) {
+			if (threads < 1) {
+				throw new IllegalArgumentException("Must have at least 1 thread");
+			}
+			this.threads = threads;
+			return this;
+		}
+
+		/**
+		 * @param threadFactory {@link ThreadFactory} creating the workers
+		 * @return this
+		 */
+		public Builder<K> threadFactory(final ThreadFactory threadFactory) {
+			this.threadFactory = threadFactory;
+			return this;
+		}
+
+		/**
+		 * @param serialPerKey Run at most one task per key at a time, in
+		 *                     submission order
+		 * @return this
+		 */
+		public Builder<K> serialPerKey(final boolean serialPerKey) {
+			this.serialPerKey = serialPerKey;
+			return this;
+		}
+
+		/**
+		 * @param bucketSensor Factory for each key's {@link BucketSensor}, e.g. a
+		 *                     rate limit per key
+		 * @return this
+		 */
+		public Builder<K> bucketSensor(final BiFunction<K, Bucket<K, Runnable>, BucketSensor> bucketSensor) {
+			this.bucketSensor = bucketSensor;
+			return this;
+		}
+
+		/**
+		 * @param drainQuantum With {@link #serialPerKey(boolean)}, tasks a worker
+		 *                     runs from one leased key before moving on.
+		 *                     Otherwise workers take one task at a time and
+		 *                     this is only the queue's
+		 *                     {@link BucketedBlockingQueue.Builder#drainQuantum(int)}.
+		 * @return this
+		 */
+		public Builder<K> drainQuantum(final int drainQuantum) {
+			if (drainQuantum < 1) {
+				throw new IllegalArgumentException("Drain quantum must be at least 1");
+			}
+			this.drainQuantum = drainQuantum;
+			return this;
+		}
+
+		/**
+		 * @param expireIdleTime Time since a key's last task after which its
+		 *                       empty bucket is dropped, so a stream of one-off
+		 *                       keys doesn't grow the queue without bound. The
+		 *                       bucket is made again if the key comes back. 0 or
+		 *                       less keeps every bucket. Defaults to 1 minute.
+		 * @param expireIdleUnit {@link TimeUnit} of expireIdleTime
+		 * @return this
+		 */
+		public Builder<K> expireIdleKeys(final long expireIdleTime, final TimeUnit expireIdleUnit) {
+			this.expireIdleTime = expireIdleTime;
+			this.expireIdleUnit = expireIdleUnit;
+			return this;
+		}
+
+		public BucketedExecutorService<K> build() {
+			return new BucketedExecutorService<K>(this);
+		}
+	}
+
+	/**
+	 * @param <K>   Type of the Bucketing Key
+	 * @param keyOf {@link Function} to provide the bucketing key given the
+	 *              submitted {@link Runnable} or {@link Callable}
+	 * @return New {@link Builder}
+	 */
+	public static <K> Builder<K> builder(final Function<Object, K> keyOf) {
+		return new Builder<K>(keyOf);
+	}
+
+	/**
+	 * Task with the key it was submitted under.
+	 */
+	private static final class KeyedTask<K> implements Runnable {
+		final K key;
+		final Runnable task;
+
+		KeyedTask(final K key, final Runnable task) {
+			this.key = key;
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			this.task.run();
+		}
+	}
+
+	/**
+	 * Future keyed by the task it was created for, before the task is hidden
+	 * inside it.
+	 */
+	private static final class KeyedFutureTask<K, T> extends FutureTask<T> {
+		final K key;
+
+		KeyedFutureTask(final K key, final Callable<T> callable) {
+			super(callable);
+			this.key = key;
+		}
+
+		KeyedFutureTask(final K key, final Runnable runnable, final T result) {
+			super(runnable, result);
+			this.key = key;
+		}
+	}
+
+	@Override
+	protected <T> RunnableFuture<T> newTaskFor(final Runnable runnable, final T value) {
+		return new KeyedFutureTask<K, T>(this.keyOf.apply(runnable), runnable, value);
+	}
+
+	@Override
+	protected <T> RunnableFuture<T> newTaskFor(final Callable<T> callable) {
+		return new KeyedFutureTask<K, T>(this.keyOf.apply(callable), callable);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public void execute(final Runnable command) {
+		if (command instanceof KeyedFutureTask) {
+			this.execute(((KeyedFutureTask<K, ?>) command).key, command);
+		} else {
+			this.execute(this.keyOf.apply(command), command);
+		}
+	}
+
+	/**
+	 * Runs a task under the given key, bypassing the key function.
+	 * 
+	 * @param key     Bucketing key
+	 * @param command Task
+	 */
+	public void execute(final K key, final Runnable command) {
+		if (command == null) {
+			throw new NullPointerException();
+		}
+		if (this.state != RUNNING) {
+			throw new RejectedExecutionException("Executor has been shut down");
+		}
+		final KeyedTask<K> task = new KeyedTask<K>(key, command);
+		if (!this.queue.offer(task)) {
+			throw new RejectedExecutionException("Bucket refused the task");
+		}
+		// Shut down while offering, take it back unless a worker already has it
+		if (this.state != RUNNING && this.queue.remove(task)) {
+			throw new RejectedExecutionException("Executor has been shut down");
+		}
+	}
+
+	public <T> Future<T> submit(final K key, final Callable<T> task) {
+		final RunnableFuture<T> f = new KeyedFutureTask<K, T>(key, task);
+		this.execute(key, f);
+		return f;
+	}
+
+	public Future<?> submit(final K key, final Runnable task) {
+		final RunnableFuture<Void> f = new KeyedFutureTask<K, Void>(key, task, null);
+		this.execute(key, f);
+		return f;
+	}
+
+	/**
+	 * @return Queue the tasks wait in, e.g. to read its size
+	 */
+	public BucketedBlockingQueue<K, Runnable> queue() {
+		return this.queue;
+	}
+
+	@Override
+	public void shutdown() {
+		if (this.state == RUNNING) {
+			this.state = SHUTDOWN;
+		}
+		// Wake idle workers so they notice, a busy one holds its lock
+		for (Worker w : this.workers) {
+			if (w.lock.tryLock()) {
+				try {
+					w.thread.interrupt();
+				} finally {
+					w.lock.unlock();
+				}
+			}
+		}
+	}
+
+	@Override
+	public List<Runnable> shutdownNow() {
+		this.state = STOP;
+		for (Worker w : this.workers) {
+			w.thread.interrupt();
+		}
+		final List<Runnable> pending = new ArrayList<Runnable>();
+		this.queue.removeIf(r -> pending.add(((KeyedTask<?>) r).task));
+		return pending;
+	}
+
+	@Override
+	public boolean isShutdown() {
+		return this.state != RUNNING;
+	}
+
+	@Override
+	public boolean isTerminated() {
+		return this.terminated.getCount() == 0;
+	}
+
+	@Override
+	public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+		return this.terminated.await(timeout, unit);
+	}
+
+	private final class Worker implements Runnable {
+		/**
+		 * Held while running a task, so shutdown only interrupts idle workers.
+		 */
+		final ReentrantLock lock = new ReentrantLock();
+		Thread thread;
+
+		@Override
+		public void run() {
+			try {
+				if (serialPerKey) {
+					BucketLease<K, Runnable> lease;
+					while ((lease = nextLease()) != null) {
+						try {
+							Runnable task;
+							while (state < STOP && (task = lease.poll()) != null) {
+								this.runTask(task);
+							}
+						} finally {
+							lease.close();
+						}
+					}
+				} else {
+					Runnable task;
+					while ((task = nextTask()) != null) {
+						this.runTask(task);
+					}
+				}
+			} finally {
+				terminated.countDown();
+			}
+		}
+
+		private void runTask(final Runnable task) {
+			this.lock.lock();
+			try {
+				// Drop an interrupt from shutdown racing the worker going busy
+				if (state < STOP) {
+					Thread.interrupted();
+				}
+				task.run();
+			} catch (Throwable t) {
+				final Thread current = Thread.currentThread();
+				current.getUncaughtExceptionHandler().uncaughtException(current, t);
+			} finally {
+				this.lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * @return Next task, or null once the worker should exit
+	 */
+	private Runnable nextTask() {
+		while (true) {
+			try {
+				if (this.state == RUNNING) {
+					return this.queue.take();
+				}
+				if (this.state >= STOP || this.queue.isEmpty()) {
+					return null;
+				}
+				final Runnable task = this.queue.poll(SHUTDOWN_POLL_MILLIS, TimeUnit.MILLISECONDS);
+				if (task != null) {
+					return task;
+				}
+			} catch (InterruptedException e) {
+				// Woken by shutdown, check the state again
+			}
+		}
+	}
+
+	/**
+	 * @return Next lease, or null once the worker should exit
+	 */
+	private BucketLease<K, Runnable> nextLease() {
+		while (true) {
+			try {
+				if (this.state == RUNNING) {
+					return this.queue.lease();
+				}
+				if (this.state >= STOP || this.queue.isEmpty()) {
+					return null;
+				}
+				final BucketLease<K, Runnable> lease = this.queue.lease(SHUTDOWN_POLL_MILLIS, TimeUnit.MILLISECONDS);
+				if (lease != null) {
+					return lease;
+				}
+			} catch (InterruptedException e) {
+				// Woken by shutdown, check the state again
+			}
+		}
+	}
+}
@@ -1,53 +1,180 @@
 package com.nerdynick.queue.blocking.bucket.sensor;
 
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
 
-public class AtCapacityCallbackSensor implements BucketSensor {
-	
-	public AtCapacityCallbackSensor() {
-		
+import com.nerdynick.queue.blocking.bucket.Bucket;
+
+/**
+ * Watermark sensor tracking a bucket's depth. Calls back once when the depth
+ * reaches the high watermark, and once more when it has dropped back to the low
+ * watermark, so a depth hovering around either mark doesn't flap.
+ * <p>
+ * Callbacks run on the producer or consumer thread that crossed the mark and
+ * should be quick. Optionally offers are rejected while the bucket is at the
+ * high watermark, shedding load per key.
+ * 
+ * @author Nikoleta Verbeck
+ *
+ * @param <K> Type of the Bucketing Key
+ */
+public class AtCapacityCallbackSensor<K> implements BucketSensor {
+	private final AtomicLong depth = new AtomicLong();
+	private final AtomicBoolean aboveHigh = new AtomicBoolean(false);
+	private final K key;
+	private final long high;
+	private final long low;
+	private final Consumer<? super K> onHigh;
+	private final Consumer<? super K> onLow;
+	private final boolean rejectAboveHigh;
+
+	/**
+	 * @param key             Bucketing key handed to the callbacks
+	 * @param high            Depth that fires onHigh
+	 * @param low             Depth that fires onLow once high has fired
+	 * @param onHigh          Called when the depth reaches high
+	 * @param onLow           Called when the depth drops back to low
+	 * @param rejectAboveHigh Reject offers that would take the depth past high
+	 */
+	public AtCapacityCallbackSensor(final K key, final long high, final long low, final Consumer<? super K> onHigh,
+			final Consumer<? super K> onLow, final boolean rejectAboveHigh) {
+		if (low < 0 || low >= high) {
+			throw new IllegalArgumentException("Watermarks must satisfy 0 <= low < high");
+		}
+		this.key = key;
+		this.high = high;
+		this.low = low;
+		this.onHigh = onHigh;
+		this.onLow = onLow;
+		this.rejectAboveHigh = rejectAboveHigh;
 	}
 
 	@Override
 	public void onOffer() {
-		// TODO Auto-generated method stub
-		
+		this.moved(this.depth.incrementAndGet());
 	}
 
 	@Override
 	public void onOffer(long count) {
-		// TODO Auto-generated method stub
-		
+		this.moved(this.depth.addAndGet(count));
 	}
 
 	@Override
 	public void onTake() {
-		// TODO Auto-generated method stub
-		
+		this.moved(this.depth.decrementAndGet());
+	}
+
+	@Override
+	public void onTake(long count) {
+		this.moved(this.depth.addAndGet(-count));
+	}
+
+	@Override
+	public void onRemove(long count) {
+		this.onTake(count);
+	}
+
+	@Override
+	public void releaseOffer(long count) {
+		this.onTake(count);
+	}
+
+	/**
+	 * Takes are counted when granted, so give back the ones that found no
+	 * element.
+	 */
+	@Override
+	public void releaseTake(long count) {
+		this.onOffer(count);
+	}
+
+	/**
+	 * Reserves room below the high watermark in one step when rejecting, so
+	 * concurrent producers can't overshoot it.
+	 */
+	@Override
+	public long tryAcquireOffer(long count) {
+		if (!this.rejectAboveHigh) {
+			this.onOffer(count);
+			return count;
+		}
+		long current, granted;
+		do {
+			current = this.depth.get();
+			granted = Math.min(count, this.high - current);
+			if (granted <= 0) {
+				return 0;
+			}
+		} while (!this.depth.compareAndSet(current, current + granted));
+		this.moved(current + granted);
+		return granted;
+	}
+
+	private void moved(final long depth) {
+		if (depth >= this.high) {
+			if (!this.aboveHigh.get() && this.aboveHigh.compareAndSet(false, true) && this.onHigh != null) {
+				this.onHigh.accept(this.key);
+			}
+		} else if (depth <= this.low) {
+			if (this.aboveHigh.get() && this.aboveHigh.compareAndSet(true, false) && this.onLow != null) {
+				this.onLow.accept(this.key);
+			}
+		}
 	}
 
 	@Override
 	public boolean canTake() {
-		// TODO Auto-generated method stub
-		return false;
+		return true;
 	}
 
 	@Override
 	public boolean canOffer() {
-		// TODO Auto-generated method stub
-		return false;
+		return !this.rejectAboveHigh || this.depth.get() < this.high;
 	}
 
 	@Override
 	public boolean canOfferWait(long timeout, TimeUnit unit) {
-		// TODO Auto-generated method stub
-		return false;
+		return this.canOffer();
 	}
 
 	@Override
 	public boolean canOfferWait() {
-		// TODO Auto-generated method stub
-		return false;
+		return this.canOffer();
 	}
 
+	/**
+	 * @return Elements currently in the bucket, as seen by this sensor
+	 */
+	public long depth() {
+		return this.depth.get();
+	}
+
+	/**
+	 * @return True between crossing the high watermark and dropping back to the
+	 *         low watermark
+	 */
+	public boolean isAboveHigh() {
+		return this.aboveHigh.get();
+	}
+
+	/**
+	 * Sensor factory for a queue's bucketSensor, calling back with the key of the
+	 * bucket that crossed a watermark.
+	 */
+	public static <K, E> BiFunction<K, Bucket<K, E>, BucketSensor> watermarks(final long high, final long low,
+			final Consumer<? super K> onHigh, final Consumer<? super K> onLow) {
+		return (k, b) -> new AtCapacityCallbackSensor<K>(k, high, low, onHigh, onLow, false);
+	}
+
+	/**
+	 * {@link #watermarks(long, long, Consumer, Consumer)} that also rejects
+	 * offers to a bucket at the high watermark.
+	 */
+	public static <K, E> BiFunction<K, Bucket<K, E>, BucketSensor> shedding(final long high, final long low,
+			final Consumer<? super K> onHigh, final Consumer<? super K> onLow) {
+		return (k, b) -> new AtCapacityCallbackSensor<K>(k, high, low, onHigh, onLow, true);
+	}
 }
@@ -6,9 +6,84 @@ public interface BucketSensor {
 	public void onOffer();
 	public void onOffer(long count);
 	public void onTake();
+
+	/**
+	 * Accounts for a batch of takes. Defaults to one {@link #onTake()} per take,
+	 * so sensors written before batched takes keep working.
+	 * 
+	 * @param count Elements taken
+	 */
+	public default void onTake(final long count) {
+		for (long i = 0; i < count; i++) {
+			this.onTake();
+		}
+	}
 	
 	public boolean canTake();
 	public boolean canOffer();
 	public boolean canOfferWait(long timeout, TimeUnit unit);
 	public boolean canOfferWait();
+	
+	/**
+	 * Hint for how long until {@link #canTake()} will allow a take, so consumers
+	 * can park instead of polling a throttled bucket.
+	 * 
+	 * @return Nanoseconds until a take is allowed, 0 when allowed now or when the
+	 *         sensor can't tell
+	 */
+	public default long takeDelayNanos() {
+		return 0;
+	}
+
+	/**
+	 * Checks and accounts for a batch of offers in one call.
+	 * 
+	 * @param count Offers wanted
+	 * @return Offers granted, between 0 and count
+	 */
+	public default long tryAcquireOffer(final long count) {
+		if (!this.canOffer()) {
+			return 0;
+		}
+		this.onOffer(count);
+		return count;
+	}
+
+	/**
+	 * Checks and accounts for a batch of takes in one call.
+	 * 
+	 * @param count Takes wanted
+	 * @return Takes granted, between 0 and count
+	 */
+	public default long tryAcquireTake(final long count) {
+		if (!this.canTake()) {
+			return 0;
+		}
+		this.onTake(count);
+		return count;
+	}
+
+	/**
+	 * Hands back offers granted by {@link #tryAcquireOffer(long)} that the
+	 * underlying queue didn't accept.
+	 * 
+	 * @param count Unused offers
+	 */
+	public default void releaseOffer(final long count) {}
+
+	/**
+	 * Hands back takes granted by {@link #tryAcquireTake(long)} that found no
+	 * element.
+	 * 
+	 * @param count Unused takes
+	 */
+	public default void releaseTake(final long count) {}
+
+	/**
+	 * Elements left the bucket without being taken, e.g. by clear, removeIf or
+	 * removing the bucket. Not subject to the sensor.
+	 * 
+	 * @param count Elements removed
+	 */
+	public default void onRemove(final long count) {}
 }
\ No newline at end of file
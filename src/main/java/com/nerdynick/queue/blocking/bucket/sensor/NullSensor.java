@@ -14,6 +14,17 @@ public class NullSensor implements BucketSensor {
 	public void onOffer(long count) {}
 	@Override
 	public void onTake() {}
+	@Override
+	public void onTake(long count) {}
+
+	@Override
+	public long tryAcquireOffer(long count) {
+		return count;
+	}
+	@Override
+	public long tryAcquireTake(long count) {
+		return count;
+	}
 
 	@Override
 	public boolean canTake() {
@@ -3,13 +3,19 @@ package com.nerdynick.queue.blocking.bucket.sensor;
 import java.util.concurrent.TimeUnit;
 
 import com.nerdynick.gauges.RateGauge;
+import com.nerdynick.gauges.RateMeter;
+import com.nerdynick.gauges.SlidingWindowRateGauge;
 
 public class RateLimited implements BucketSensor {
-	final RateGauge gauge;
+	final RateMeter gauge;
 	final long rate;
 	
 	public RateLimited(final long rate, final TimeUnit unit) {
-		gauge = new RateGauge(1, unit);
+		this(rate, new RateGauge(1, unit));
+	}
+	
+	public RateLimited(final long rate, final RateMeter gauge) {
+		this.gauge = gauge;
 		this.rate = rate;
 	}
 	
@@ -24,6 +30,8 @@ public class RateLimited implements BucketSensor {
 
 	@Override
 	public void onTake() {}
+	@Override
+	public void onTake(long count) {}
 
 	@Override
 	public boolean canTake() {
@@ -58,5 +66,12 @@ public class RateLimited implements BucketSensor {
 	public static RateLimited perNano(final long rate) {
 		return new RateLimited(rate, TimeUnit.NANOSECONDS);
 	}
+	/**
+	 * Rate limit over a sliding window, without the bursts a fixed window allows
+	 * at its edges.
+	 */
+	public static RateLimited sliding(final long rate, final TimeUnit unit) {
+		return new RateLimited(rate, new SlidingWindowRateGauge(1, unit));
+	}
 	
 }
\ No newline at end of file
@@ -0,0 +1,124 @@
+package com.nerdynick.queue.blocking.bucket.sensor;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.nerdynick.gauges.Clock;
+
+/**
+ * Token bucket rate limit on takes. Tokens refill continuously at the given
+ * rate up to the burst size, releasing elements smoothly instead of in
+ * per-window bursts.
+ * <p>
+ * Implemented as a generic cell rate algorithm: the state is the single
+ * {@link Clock} time at which the bucket would be full of debt, advanced with a
+ * compare-and-set per take. That makes it nanosecond precise and lets
+ * {@link #takeDelayNanos()} report exactly when the next token is due.
+ * 
+ * @author Nikoleta Verbeck
+ */
+public class TokenBucket implements BucketSensor {
+	private final AtomicLong theoreticalArrival;
+	private final long interval;
+	private final long tolerance;
+	private final Clock clock;
+
+	/**
+	 * @param rate  Tokens refilled per unit
+	 * @param unit  {@link TimeUnit} of rate
+	 * @param burst Max tokens that can accumulate
+	 */
+	public TokenBucket(final long rate, final TimeUnit unit, final long burst) {
+		this(rate, unit, burst, Clock.defaultClock());
+	}
+
+	/**
+	 * @param rate  Tokens refilled per unit
+	 * @param unit  {@link TimeUnit} of rate
+	 * @param burst Max tokens that can accumulate
+	 * @param clock {@link Clock}
+	 */
+	public TokenBucket(final long rate, final TimeUnit unit, final long burst, final Clock clock) {
+		if (rate < 1 || burst < 1) {
+			throw new IllegalArgumentException("Rate and burst must be at least 1");
+		}
+		this.interval = Math.max(1, unit.toNanos(1) / rate);
+		this.tolerance = (burst - 1) * this.interval;
+		this.clock = clock;
+		this.theoreticalArrival = new AtomicLong(clock.get());
+	}
+
+	@Override
+	public void onOffer() {}
+	@Override
+	public void onOffer(long count) {}
+
+	@Override
+	public void onTake() {
+		this.onTake(1);
+	}
+
+	@Override
+	public void onTake(long count) {
+		final long now = this.clock.get();
+		long tat;
+		do {
+			tat = this.theoreticalArrival.get();
+		} while (!this.theoreticalArrival.compareAndSet(tat, Math.max(tat, now) + count * this.interval));
+	}
+
+	@Override
+	public long tryAcquireTake(long count) {
+		final long now = this.clock.get();
+		long tat, base, granted;
+		do {
+			tat = this.theoreticalArrival.get();
+			base = Math.max(tat, now);
+			// Takes that fit before the debt passes the burst tolerance
+			final long available = now + this.tolerance - base;
+			if (available < 0) {
+				return 0;
+			}
+			granted = Math.min(count, available / this.interval + 1);
+		} while (!this.theoreticalArrival.compareAndSet(tat, base + granted * this.interval));
+		return granted;
+	}
+
+	@Override
+	public void releaseTake(long count) {
+		this.theoreticalArrival.addAndGet(-count * this.interval);
+	}
+
+	@Override
+	public boolean canTake() {
+		return this.takeDelayNanos() == 0;
+	}
+
+	@Override
+	public long takeDelayNanos() {
+		final long delay = this.theoreticalArrival.get() - this.tolerance - this.clock.get();
+		return delay > 0 ? delay : 0;
+	}
+
+	@Override
+	public boolean canOffer() {
+		return true;
+	}
+
+	@Override
+	public boolean canOfferWait(long timeout, TimeUnit unit) {
+		return true;
+	}
+
+	@Override
+	public boolean canOfferWait() {
+		return true;
+	}
+
+	public static TokenBucket perSecond(final long rate, final long burst) {
+		return new TokenBucket(rate, TimeUnit.SECONDS, burst);
+	}
+	public static TokenBucket perMinute(final long rate, final long burst) {
+		return new TokenBucket(rate, TimeUnit.MINUTES, burst);
+	}
+}
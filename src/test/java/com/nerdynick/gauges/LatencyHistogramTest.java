@@ -0,0 +1,32 @@
+package com.nerdynick.gauges;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+	@Test
+	public void testBucketBounds() {
+		for (long v : new long[] { 0, 1, 7, 8, 15, 16, 17, 1000, 123456789L, Long.MAX_VALUE }) {
+			final long high = LatencyHistogram.highestEquivalent(LatencyHistogram.indexOf(v));
+			assertTrue(v + " reported as " + high, high >= v);
+			assertTrue(v + " reported as " + high, high - v <= v / 8);
+		}
+	}
+
+	@Test
+	public void testPercentiles() {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 100; i++) {
+			histogram.record(i * 1000);
+		}
+		assertEquals(100, histogram.count());
+		assertEquals(100000, histogram.max());
+		assertEquals(50500, histogram.mean(), 0.1);
+
+		final long p50 = histogram.percentile(50);
+		assertTrue("p50 was " + p50, p50 >= 50000 && p50 <= 50000 * 9 / 8);
+		assertEquals(100000, histogram.percentile(100));
+	}
+}
@@ -0,0 +1,96 @@
+package com.nerdynick.gauges;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.nerdynick.gauges.Clock.TestClock;
+
+public class SlidingWindowRateGaugeTest {
+	private static final long SLICE = TimeUnit.MILLISECONDS.toNanos(100);
+
+	@Test
+	public void testBasics() {
+		final TestClock clock = new TestClock(System.nanoTime());
+		final SlidingWindowRateGauge gauge = new SlidingWindowRateGauge(1, TimeUnit.SECONDS, 10, clock);
+
+		assertEquals(0, gauge.currentRate());
+
+		gauge.incr();
+		gauge.add(9);
+		assertEquals(10, gauge.currentRate());
+
+		clock.add(1);
+		assertEquals(10, gauge.currentRate());
+
+		clock.add(TimeUnit.SECONDS.toNanos(2));
+		assertEquals(0, gauge.currentRate());
+	}
+
+	@Test
+	public void testSlidesAcrossBoundary() {
+		final TestClock clock = new TestClock(0);
+		final SlidingWindowRateGauge gauge = new SlidingWindowRateGauge(1, TimeUnit.SECONDS, 10, clock);
+
+		gauge.add(100);
+		clock.set(5 * SLICE);
+		gauge.add(100);
+		assertEquals(200, gauge.currentRate());
+
+		// The first slice leaves the window gradually rather than all at once
+		clock.set(10 * SLICE + SLICE / 2);
+		assertEquals(150, gauge.currentRate());
+
+		clock.set(11 * SLICE);
+		assertEquals(100, gauge.currentRate());
+
+		clock.set(16 * SLICE);
+		assertEquals(0, gauge.currentRate());
+	}
+
+	@Test
+	public void testLargeCounts() {
+		final TestClock clock = new TestClock(0);
+		final SlidingWindowRateGauge gauge = new SlidingWindowRateGauge(1, TimeUnit.SECONDS, 10, clock);
+
+		gauge.add(SlidingWindowRateGauge.MAX_SLICE_COUNT);
+		gauge.add(SlidingWindowRateGauge.MAX_SLICE_COUNT);
+		assertEquals("Slice didn't saturate", SlidingWindowRateGauge.MAX_SLICE_COUNT, gauge.currentRate());
+		clock.set(SLICE);
+		gauge.add(5);
+		assertEquals(SlidingWindowRateGauge.MAX_SLICE_COUNT + 5, gauge.currentRate());
+
+		// The saturated slice still expires on time
+		clock.set(11 * SLICE);
+		assertEquals(5, gauge.currentRate());
+
+		try {
+			gauge.add(SlidingWindowRateGauge.MAX_SLICE_COUNT + 1);
+			fail("Overflowing count was accepted");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+		assertEquals(5, gauge.currentRate());
+	}
+
+	@Test
+	public void testConcurrentIncrements() throws InterruptedException {
+		final SlidingWindowRateGauge gauge = new SlidingWindowRateGauge(1, TimeUnit.HOURS);
+		final Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < 100000; i++) {
+					gauge.incr();
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		assertEquals(400000, gauge.currentRate());
+	}
+}
@@ -0,0 +1,138 @@
+package com.nerdynick.queue.blocking.bucket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import com.nerdynick.gauges.Clock.TestClock;
+
+public class BucketLeaseTest {
+	private static BucketedBlockingQueue<String, String> newQueue(final int quantum) {
+		return BucketedBlockingQueue.<String, String>builder(e -> e.substring(0, 1))
+				.drainQuantum(quantum)
+				.build();
+	}
+
+	@Test
+	public void testLeaseExcludesKey() throws InterruptedException {
+		final BucketedBlockingQueue<String, String> queue = newQueue(2);
+		queue.offer("a1");
+		queue.offer("a2");
+		queue.offer("a3");
+		queue.offer("b1");
+
+		try (BucketLease<String, String> lease = queue.lease()) {
+			assertEquals("a", lease.key());
+			assertEquals("a1", lease.poll());
+			assertEquals("Another consumer got the leased key", "b1", queue.poll());
+			assertNull(queue.poll());
+			assertEquals("a2", lease.poll());
+			assertNull("Lease went past its quantum", lease.poll());
+		}
+		assertEquals("a3", queue.poll());
+		assertNull(queue.lease(10, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testLeaseDrainTo() throws InterruptedException {
+		final BucketedBlockingQueue<String, String> queue = newQueue(2);
+		queue.offer("a1");
+		queue.offer("a2");
+		queue.offer("a3");
+
+		final List<String> drained = new ArrayList<String>();
+		try (BucketLease<String, String> lease = queue.lease()) {
+			assertEquals(2, lease.drainTo(drained));
+			assertEquals(0, lease.remaining());
+		}
+		assertEquals(2, drained.size());
+		assertEquals(1, queue.size());
+	}
+
+	@Test
+	public void testOrderedPerKey() throws InterruptedException {
+		final BucketedBlockingQueue<String, String> queue = newQueue(4);
+		final int perKey = 2000;
+		for (int i = 0; i < perKey; i++) {
+			for (char k = 'a'; k <= 'h'; k++) {
+				queue.offer(k + Integer.toString(i));
+			}
+		}
+
+		final ConcurrentHashMap<String, Integer> last = new ConcurrentHashMap<String, Integer>();
+		final ConcurrentHashMap<String, Boolean> inFlight = new ConcurrentHashMap<String, Boolean>();
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		final List<Thread> consumers = new ArrayList<Thread>();
+		for (int t = 0; t < 4; t++) {
+			final Thread thread = new Thread(() -> {
+				try {
+					BucketLease<String, String> lease;
+					while ((lease = queue.lease(50, TimeUnit.MILLISECONDS)) != null) {
+						try {
+							if (inFlight.put(lease.key(), true) != null) {
+								failed.set(true);
+							}
+							String e;
+							while ((e = lease.poll()) != null) {
+								final int seq = Integer.parseInt(e.substring(1));
+								final Integer prev = last.put(lease.key(), seq);
+								if (prev != null && prev != seq - 1) {
+									failed.set(true);
+								}
+							}
+							inFlight.remove(lease.key());
+						} finally {
+							lease.close();
+						}
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+			consumers.add(thread);
+			thread.start();
+		}
+		for (Thread thread : consumers) {
+			thread.join();
+		}
+		assertTrue("A key was processed out of order or concurrently", !failed.get());
+		assertTrue(queue.isEmpty());
+		assertEquals(8, last.size());
+	}
+
+	@Test
+	public void testLeasedBucketNotExpired() throws InterruptedException {
+		final TestClock clock = new TestClock(0);
+		final BucketedBlockingQueue<String, String> queue = BucketedBlockingQueue.<String, String>builder(e -> e.substring(0, 1))
+				.drainQuantum(10)
+				.expireAfterAccess(10, TimeUnit.MILLISECONDS)
+				.clock(clock)
+				.build();
+		queue.offer("a1");
+		queue.offer("a2");
+
+		try (BucketLease<String, String> lease = queue.lease()) {
+			assertEquals("a1", lease.poll());
+			clock.add(TimeUnit.HOURS.toNanos(1));
+			// Advances expiry past the leased bucket
+			queue.offer("b1");
+			queue.offer("a3");
+
+			try (BucketLease<String, String> other = queue.lease(10, TimeUnit.MILLISECONDS)) {
+				assertEquals("b", other.key());
+				assertEquals("b1", other.poll());
+			}
+			assertNull("Expiry let a second consumer lease the key", queue.lease(10, TimeUnit.MILLISECONDS));
+			assertEquals("a2", lease.poll());
+			assertEquals("a3", lease.poll());
+		}
+	}
+}
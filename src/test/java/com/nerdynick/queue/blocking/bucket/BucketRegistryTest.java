@@ -0,0 +1,84 @@
+package com.nerdynick.queue.blocking.bucket;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.nerdynick.gauges.Clock.TestClock;
+import com.nerdynick.queue.blocking.bucket.sensor.NullSensor;
+
+public class BucketRegistryTest {
+	private static BucketRegistry<String, String> newRegistry(final TestClock clock) {
+		return new BucketRegistry<String, String>(
+				k -> new Bucket<String, String>(new LinkedBlockingDeque<String>(), (key, b) -> NullSensor.instance(), k),
+				TimeUnit.SECONDS.toNanos(1), clock);
+	}
+
+	@Test
+	public void testGetCreatesOnce() {
+		final BucketRegistry<String, String> registry = newRegistry(new TestClock(0));
+		final Bucket<String, String> a = registry.get("a");
+		assertSame(a, registry.get("a"));
+		assertSame(a, registry.getIfPresent("a"));
+		assertNull(registry.getIfPresent("b"));
+	}
+
+	@Test
+	public void testExpireAfterAccess() {
+		final TestClock clock = new TestClock(0);
+		final BucketRegistry<String, String> registry = newRegistry(clock);
+		registry.get("a");
+
+		clock.set(TimeUnit.MILLISECONDS.toNanos(500));
+		registry.get("b");
+		assertNotNull(registry.getIfPresent("a"));
+
+		clock.set(TimeUnit.MILLISECONDS.toNanos(1100));
+		registry.get("b");
+		assertNull("Idle bucket wasn't expired", registry.getIfPresent("a"));
+		assertNotNull(registry.getIfPresent("b"));
+
+		clock.set(TimeUnit.MILLISECONDS.toNanos(2000));
+		registry.get("c");
+		assertNotNull("Accessed bucket was expired", registry.getIfPresent("b"));
+
+		clock.set(TimeUnit.MILLISECONDS.toNanos(2200));
+		registry.get("c");
+		assertNull("Idle bucket wasn't expired", registry.getIfPresent("b"));
+	}
+
+	@Test
+	public void testNoExpiry() {
+		final TestClock clock = new TestClock(0);
+		final BucketRegistry<String, String> registry = new BucketRegistry<String, String>(
+				k -> new Bucket<String, String>(new LinkedBlockingDeque<String>(), (key, b) -> NullSensor.instance(), k),
+				-1, clock);
+		registry.get("a");
+		clock.set(TimeUnit.DAYS.toNanos(1));
+		registry.get("b");
+		assertNotNull(registry.getIfPresent("a"));
+	}
+
+	@Test
+	public void testNonEmptyBucketsKept() {
+		final TestClock clock = new TestClock(0);
+		final BucketRegistry<String, String> registry = newRegistry(clock);
+		registry.get("a").offer("a1");
+
+		clock.set(TimeUnit.MILLISECONDS.toNanos(500));
+		registry.get("b");
+		clock.set(TimeUnit.MILLISECONDS.toNanos(1100));
+		registry.get("b");
+		assertNotNull("Non-empty bucket was expired", registry.getIfPresent("a"));
+
+		registry.getIfPresent("a").poll();
+		clock.set(TimeUnit.MILLISECONDS.toNanos(2200));
+		registry.get("b");
+		assertNull("Empty idle bucket wasn't expired", registry.getIfPresent("a"));
+	}
+}
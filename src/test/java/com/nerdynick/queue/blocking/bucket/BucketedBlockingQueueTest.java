@@ -0,0 +1,303 @@
+package com.nerdynick.queue.blocking.bucket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.nerdynick.queue.blocking.bucket.sensor.NullSensor;
+import com.nerdynick.queue.blocking.bucket.sensor.TokenBucket;
+
+public class BucketedBlockingQueueTest {
+	private static BucketedBlockingQueue<String, String> newQueue() {
+		return new BucketedBlockingQueue<String, String>(
+				e -> e.substring(0, 1),
+				(k, b) -> NullSensor.instance(),
+				1, TimeUnit.HOURS);
+	}
+
+	@Test
+	public void testRoundRobin() {
+		final BucketedBlockingQueue<String, String> queue = newQueue();
+		queue.offer("a1");
+		queue.offer("a2");
+		queue.offer("a3");
+		queue.offer("b1");
+		queue.offer("c1");
+		queue.offer("c2");
+
+		assertEquals("a1", queue.poll());
+		assertEquals("b1", queue.poll());
+		assertEquals("c1", queue.poll());
+		assertEquals("a2", queue.poll());
+		assertEquals("c2", queue.poll());
+		assertEquals("a3", queue.poll());
+		assertNull(queue.poll());
+	}
+
+	@Test
+	public void testBucketRequeuedAfterEmpty() {
+		final BucketedBlockingQueue<String, String> queue = newQueue();
+		queue.offer("a1");
+		assertEquals("a1", queue.poll());
+		assertNull(queue.poll());
+
+		queue.offer("a2");
+		assertEquals("a2", queue.poll());
+	}
+
+	@Test
+	public void testSize() {
+		final BucketedBlockingQueue<String, String> queue = newQueue();
+		assertTrue(queue.isEmpty());
+		queue.offer("a1");
+		queue.offer("a2");
+		queue.offer("b1");
+		assertEquals(3, queue.size());
+		assertEquals(2, queue.activeBucketCount());
+
+		queue.poll();
+		queue.drainTo(new ArrayList<String>(), 1);
+		assertEquals(1, queue.size());
+		queue.clear();
+		assertEquals(0, queue.size());
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void testOfferAll() {
+		final BucketedBlockingQueue<String, String> queue = BucketedBlockingQueue.<String, String>builder(e -> e.substring(0, 1))
+				.maxElements(4)
+				.build();
+		final boolean[] accepted = queue.offerAll(Arrays.asList("a1", "b1", "a2", "a3", "b2", "c1"));
+		assertTrue(Arrays.equals(new boolean[] { true, true, true, true, false, false }, accepted));
+		assertEquals(4, queue.size());
+		assertEquals(2, queue.activeBucketCount());
+
+		assertEquals("a1", queue.poll());
+		assertEquals("b1", queue.poll());
+		assertEquals("a2", queue.poll());
+		assertEquals(3, queue.remainingCapacity());
+	}
+
+	@Test
+	public void testPutAllWaitsForCapacity() throws InterruptedException {
+		final BucketedBlockingQueue<String, String> queue = BucketedBlockingQueue.<String, String>builder(e -> e.substring(0, 1))
+				.maxElements(2)
+				.build();
+		final List<String> taken = new ArrayList<String>();
+		final Thread consumer = new Thread(() -> {
+			try {
+				for (int i = 0; i < 5; i++) {
+					taken.add(queue.take());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		consumer.start();
+
+		final boolean[] accepted = queue.putAll(Arrays.asList("a1", "a2", "a3", "b1", "b2"));
+		consumer.join(1000);
+		assertTrue(Arrays.equals(new boolean[] { true, true, true, true, true }, accepted));
+		assertEquals(5, taken.size());
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void testHotKeyCacheSeesRemovedBucket() {
+		final BucketedBlockingQueue<String, String> queue = BucketedBlockingQueue.<String, String>builder(e -> e.substring(0, 1))
+				.hotKeyCache(true)
+				.build();
+		queue.offer("a1");
+		queue.offer("a2");
+		queue.offer("b1");
+		queue.offer("a3");
+		assertEquals(3, queue.removeBucket("a", null));
+
+		queue.offer("a4");
+		assertEquals("Cached bucket was used after removal", 1, queue.removeBucket("a", null));
+		assertEquals("b1", queue.poll());
+		assertNull(queue.poll());
+	}
+
+	@Test
+	public void testPollTimeout() throws InterruptedException {
+		final BucketedBlockingQueue<String, String> queue = newQueue();
+		assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+		assertNull(queue.poll(0, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testThrottledBucketParked() throws InterruptedException {
+		final BucketedBlockingQueue<String, String> queue = new BucketedBlockingQueue<String, String>(
+				e -> e.substring(0, 1),
+				(k, b) -> "a".equals(k) ? TokenBucket.perSecond(20, 1) : NullSensor.instance(),
+				1, TimeUnit.HOURS);
+		queue.offer("a1");
+		queue.offer("a2");
+		queue.offer("b1");
+
+		assertEquals("a1", queue.poll());
+		assertEquals("b1", queue.poll());
+		assertNull(queue.poll());
+
+		final long start = System.nanoTime();
+		assertEquals("a2", queue.poll(1, TimeUnit.SECONDS));
+		assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+	}
+
+	@Test
+	public void testTakeWakesOnPut() throws InterruptedException {
+		final BucketedBlockingQueue<String, String> queue = newQueue();
+		final AtomicReference<String> taken = new AtomicReference<String>();
+		final Thread consumer = new Thread(() -> {
+			try {
+				taken.set(queue.take());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		consumer.start();
+
+		Thread.sleep(50);
+		queue.put("a1");
+		consumer.join(TimeUnit.SECONDS.toMillis(5));
+
+		assertTrue("Consumer didn't wake up", !consumer.isAlive());
+		assertEquals("a1", taken.get());
+	}
+
+	@Test
+	public void testDrainToQuantum() {
+		final BucketedBlockingQueue<String, String> queue = BucketedBlockingQueue.<String, String>builder(e -> e.substring(0, 1))
+				.drainQuantum(2)
+				.build();
+		queue.addAll(Arrays.asList("a1", "a2", "a3", "b1", "c1", "c2", "c3"));
+
+		final List<String> drained = new ArrayList<String>();
+		assertEquals(5, queue.drainTo(drained, 5));
+		assertEquals(Arrays.asList("a1", "a2", "b1", "c1", "c2"), drained);
+
+		drained.clear();
+		assertEquals(2, queue.drainTo(drained));
+		assertEquals(Arrays.asList("a3", "c3"), drained);
+		assertNull(queue.poll());
+	}
+
+	@Test
+	public void testRemoveBucketSpills() {
+		final BucketedBlockingQueue<String, String> queue = newQueue();
+		queue.addAll(Arrays.asList("a1", "a2", "b1"));
+
+		final List<String> spilled = new ArrayList<String>();
+		assertEquals(2, queue.removeBucket("a", spilled::add));
+		assertEquals(Arrays.asList("a1", "a2"), spilled);
+		assertEquals(0, queue.removeBucket("a", spilled::add));
+
+		assertEquals("b1", queue.poll());
+		assertNull(queue.poll());
+	}
+
+	@Test
+	public void testOnlyReadyBucketsVisited() {
+		final BucketedBlockingQueue<String, String> queue = BucketedBlockingQueue.<String, String>builder(e -> e.substring(0, e.indexOf(':')))
+				.build();
+		// Thousands of idle, empty buckets
+		for (int k = 0; k < 5000; k++) {
+			queue.offer("k" + k + ":0");
+			assertEquals("k" + k + ":0", queue.poll());
+		}
+		assertEquals(0, queue.activeBucketCount());
+
+		queue.offer("k10:1");
+		queue.offer("k4000:1");
+		queue.offer("k10:2");
+		assertEquals("Only buckets with elements are scheduled", 2, queue.activeBucketCount());
+		assertEquals("k10:1", queue.poll());
+		assertEquals("k4000:1", queue.poll());
+		assertEquals("k10:2", queue.poll());
+		assertNull(queue.poll());
+		assertEquals(0, queue.activeBucketCount());
+	}
+
+	@Test
+	public void testConcurrentConsumersTakeEachElementOnce() throws InterruptedException {
+		final int producers = 4;
+		final int perProducer = 20000;
+		final int total = producers * perProducer;
+		final BucketedBlockingQueue<String, String> queue = BucketedBlockingQueue.<String, String>builder(e -> e.substring(0, e.indexOf(':')))
+				.drainQuantum(8)
+				.build();
+		final AtomicIntegerArray seen = new AtomicIntegerArray(total);
+		final AtomicInteger consumed = new AtomicInteger();
+		final AtomicInteger duplicates = new AtomicInteger();
+
+		final List<Thread> threads = new ArrayList<Thread>();
+		for (int p = 0; p < producers; p++) {
+			final int producer = p;
+			threads.add(new Thread(() -> {
+				for (int i = 0; i < perProducer; i++) {
+					final int id = producer * perProducer + i;
+					queue.offer("k" + (id % 64) + ":" + id);
+				}
+			}));
+		}
+		for (int c = 0; c < 6; c++) {
+			final int mode = c % 3;
+			threads.add(new Thread(() -> {
+				final List<String> batch = new ArrayList<String>();
+				try {
+					while (consumed.get() < total) {
+						batch.clear();
+						if (mode == 0) {
+							final String e = queue.poll();
+							if (e != null) {
+								batch.add(e);
+							}
+						} else if (mode == 1) {
+							final String e = queue.poll(1, TimeUnit.MILLISECONDS);
+							if (e != null) {
+								batch.add(e);
+							}
+						} else {
+							queue.drainTo(batch, 16);
+						}
+						for (String e : batch) {
+							if (seen.getAndIncrement(Integer.parseInt(e.substring(e.indexOf(':') + 1))) != 0) {
+								duplicates.incrementAndGet();
+							}
+							consumed.incrementAndGet();
+						}
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}));
+		}
+		for (Thread t : threads) {
+			t.start();
+		}
+		for (Thread t : threads) {
+			t.join(TimeUnit.SECONDS.toMillis(30));
+			assertTrue("Consumers didn't finish", !t.isAlive());
+		}
+
+		assertEquals(0, duplicates.get());
+		assertEquals(total, consumed.get());
+		for (int i = 0; i < total; i++) {
+			assertEquals("Element " + i + " wasn't taken exactly once", 1, seen.get(i));
+		}
+		assertEquals(0, queue.size());
+		assertNull(queue.poll());
+	}
+}
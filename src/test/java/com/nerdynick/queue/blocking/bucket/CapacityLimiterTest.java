@@ -0,0 +1,122 @@
+package com.nerdynick.queue.blocking.bucket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class CapacityLimiterTest {
+	@Test
+	public void testCountBound() throws InterruptedException {
+		final BucketedBlockingQueue<String, String> queue = BucketedBlockingQueue.<String, String>builder(e -> e.substring(0, 1))
+				.maxElements(3)
+				.build();
+		assertTrue(queue.offer("a1"));
+		assertTrue(queue.offer("b1"));
+		assertEquals(1, queue.remainingCapacity());
+		assertTrue(queue.offer("c1"));
+		assertFalse(queue.offer("a2"));
+		assertFalse(queue.offer("a2", 10, TimeUnit.MILLISECONDS));
+		assertEquals(0, queue.remainingCapacity());
+
+		queue.poll();
+		assertEquals(1, queue.remainingCapacity());
+		assertTrue(queue.offer("a2"));
+
+		queue.drainTo(new ArrayList<String>());
+		assertEquals(3, queue.remainingCapacity());
+	}
+
+	@Test
+	public void testWeightBound() {
+		final BucketedBlockingQueue<String, String> queue = BucketedBlockingQueue.<String, String>builder(e -> e.substring(0, 1))
+				.maxWeight(10, String::length)
+				.build();
+		assertTrue(queue.offer("a1234"));
+		assertTrue(queue.offer("b123"));
+		assertFalse(queue.offer("c12"));
+		assertTrue(queue.offer("c"));
+
+		queue.removeBucket("a");
+		assertTrue(queue.offer("c12"));
+		queue.clear();
+		assertTrue(queue.offer("a123456789"));
+	}
+
+	@Test
+	public void testDrainToThrowingTarget() {
+		final BucketedBlockingQueue<String, String> queue = BucketedBlockingQueue.<String, String>builder(e -> e.substring(0, 1))
+				.maxWeight(10, String::length)
+				.build();
+		for (int i = 1; i <= 4; i++) {
+			assertTrue(queue.offer("a" + i));
+		}
+		final List<String> drained = new ArrayList<String>();
+		try {
+			queue.drainTo(new AbstractCollection<String>() {
+				@Override
+				public boolean add(final String e) {
+					if (drained.size() == 2) {
+						throw new IllegalStateException("Full");
+					}
+					return drained.add(e);
+				}
+
+				@Override
+				public Iterator<String> iterator() {
+					return drained.iterator();
+				}
+
+				@Override
+				public int size() {
+					return drained.size();
+				}
+			});
+			fail("Target didn't throw");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+		assertEquals(Arrays.asList("a1", "a2"), drained);
+		assertEquals(2, queue.size());
+		// Only the drained elements' weight was given back
+		assertTrue(queue.offer("b12345"));
+		assertFalse(queue.offer("c"));
+		final List<String> rest = new ArrayList<String>();
+		queue.drainTo(rest);
+		rest.sort(null);
+		assertEquals(Arrays.asList("a3", "a4", "b12345"), rest);
+	}
+
+	@Test
+	public void testPutBlocksUntilTake() throws InterruptedException {
+		final BucketedBlockingQueue<String, String> queue = BucketedBlockingQueue.<String, String>builder(e -> e.substring(0, 1))
+				.maxElements(1)
+				.build();
+		queue.put("a1");
+
+		final Thread producer = new Thread(() -> {
+			try {
+				queue.put("b1");
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		producer.start();
+		Thread.sleep(50);
+		assertTrue("Producer didn't block", producer.isAlive());
+
+		assertEquals("a1", queue.take());
+		producer.join(TimeUnit.SECONDS.toMillis(5));
+		assertFalse("Producer didn't wake up", producer.isAlive());
+		assertEquals("b1", queue.take());
+	}
+}
@@ -0,0 +1,45 @@
+package com.nerdynick.queue.blocking.bucket;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class DeficitRoundRobinSchedulerTest {
+	@Test
+	public void testWeightedShare() {
+		final BucketedBlockingQueue<String, String> queue = BucketedBlockingQueue.<String, String>builder(e -> e.substring(0, 1))
+				.bucketWeight(k -> "a".equals(k) ? 3 : 1)
+				.scheduler(new DeficitRoundRobinScheduler<String, String>(1))
+				.build();
+		for (int i = 0; i < 6; i++) {
+			queue.offer("a" + i);
+			queue.offer("b" + i);
+		}
+
+		final StringBuilder order = new StringBuilder();
+		for (int i = 0; i < 8; i++) {
+			order.append(queue.poll().charAt(0));
+		}
+		assertEquals("aaabaaab", order.toString());
+	}
+
+	@Test
+	public void testDrainUsesDeficit() {
+		final BucketedBlockingQueue<String, String> queue = BucketedBlockingQueue.<String, String>builder(e -> e.substring(0, 1))
+				.bucketWeight(k -> "a".equals(k) ? 2 : 1)
+				.scheduler(new DeficitRoundRobinScheduler<String, String>(2))
+				.build();
+		for (int i = 0; i < 10; i++) {
+			queue.offer("a" + i);
+			queue.offer("b" + i);
+		}
+
+		final List<String> drained = new ArrayList<String>();
+		assertEquals(6, queue.drainTo(drained, 6));
+		assertEquals(4, drained.stream().filter(e -> e.startsWith("a")).count());
+		assertEquals(2, drained.stream().filter(e -> e.startsWith("b")).count());
+	}
+}
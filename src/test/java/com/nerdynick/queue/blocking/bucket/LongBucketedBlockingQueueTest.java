@@ -0,0 +1,66 @@
+package com.nerdynick.queue.blocking.bucket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class LongBucketedBlockingQueueTest {
+	@Test
+	public void testRoundRobin() {
+		final LongBucketedBlockingQueue<long[]> queue = LongBucketedBlockingQueue.longBuilder((long[] e) -> e[0]).build();
+		queue.offer(new long[] { 1, 1 });
+		queue.offer(new long[] { 1, 2 });
+		queue.offer(new long[] { 2, 1 });
+
+		assertEquals(1, queue.poll()[1]);
+		assertEquals(2, queue.poll()[0]);
+		assertEquals(2, queue.poll()[1]);
+		assertNull(queue.poll());
+	}
+
+	@Test
+	public void testManyKeys() {
+		final LongBucketedBlockingQueue<Long> queue = LongBucketedBlockingQueue.longBuilder((Long e) -> e % 1000).build();
+		for (long i = 0; i < 5000; i++) {
+			assertTrue(queue.offer(i));
+		}
+		assertEquals(1000, queue.activeBucketCount());
+
+		final Set<Long> keys = new HashSet<Long>();
+		for (int i = 0; i < 1000; i++) {
+			keys.add(queue.poll() % 1000);
+		}
+		assertEquals("First pass didn't visit every key once", 1000, keys.size());
+		assertEquals(4000, queue.drainTo(new ArrayList<Long>()));
+	}
+
+	@Test
+	public void testRemovedBucketReplaced() {
+		final LongBucketedBlockingQueue<Long> queue = LongBucketedBlockingQueue.longBuilder((Long e) -> e % 10).build();
+		queue.offer(1L);
+		queue.offer(11L);
+		assertEquals(2, queue.removeBucket(1L, null));
+
+		queue.offer(21L);
+		assertEquals("Retired bucket was still used", 1, queue.removeBucket(1L, null));
+	}
+
+	@Test
+	public void testOfferAll() {
+		final LongBucketedBlockingQueue<Long> queue = LongBucketedBlockingQueue.longBuilder((Long e) -> e % 2).build();
+		final boolean[] accepted = queue.offerAll(Arrays.asList(1L, 3L, 2L, 5L, 4L));
+		assertTrue(Arrays.equals(new boolean[] { true, true, true, true, true }, accepted));
+
+		final List<Long> drained = new ArrayList<Long>();
+		queue.drainTo(drained);
+		assertEquals(Arrays.asList(1L, 3L, 5L, 2L, 4L), drained);
+	}
+}
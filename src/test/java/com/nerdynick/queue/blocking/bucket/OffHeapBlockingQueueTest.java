@@ -0,0 +1,135 @@
+package com.nerdynick.queue.blocking.bucket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import org.junit.Test;
+
+public class OffHeapBlockingQueueTest {
+	private static ByteBuffer payload(final String s) {
+		return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String string(final ByteBuffer b) {
+		final byte[] bytes = new byte[b.remaining()];
+		b.duplicate().get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void testFifoViews() {
+		final OffHeapBlockingQueue queue = new OffHeapBlockingQueue();
+		final ByteBuffer in = payload("hello");
+		queue.offer(in);
+		queue.offer(payload(""));
+		queue.offer(payload("world"));
+		assertEquals("Offer moved the payload's position", 5, in.remaining());
+		assertEquals(10, queue.bytes());
+
+		final ByteBuffer first = queue.poll();
+		assertTrue(first.isDirect());
+		assertTrue(first.isReadOnly());
+		assertEquals("hello", string(first));
+		assertEquals("", string(queue.poll()));
+		assertEquals("world", string(queue.peek()));
+		assertEquals("world", string(queue.poll()));
+		assertNull(queue.poll());
+		assertEquals("View was overwritten", "hello", string(first));
+	}
+
+	@Test
+	public void testViewsSurviveManySlabs() {
+		final OffHeapBlockingQueue queue = new OffHeapBlockingQueue();
+		final List<ByteBuffer> views = new ArrayList<ByteBuffer>();
+		for (int i = 0; i < 20000; i++) {
+			queue.offer(payload("record-" + i));
+			if (i % 3 == 0) {
+				views.add(queue.poll());
+			}
+		}
+		queue.drainTo(views);
+		assertEquals(20000, views.size());
+		assertTrue(queue.isEmpty());
+		assertEquals("record-0", string(views.get(0)));
+		assertEquals("record-19999", string(views.get(views.size() - 1)));
+
+		final ByteBuffer large = ByteBuffer.allocate(200 * 1024);
+		queue.offer(large);
+		assertEquals(200 * 1024, queue.poll().remaining());
+	}
+
+	@Test
+	public void testMaxBytes() {
+		final OffHeapBlockingQueue queue = new OffHeapBlockingQueue(8);
+		assertTrue(queue.offer(payload("abcde")));
+		assertFalse(queue.offer(payload("fghi")));
+		assertTrue(queue.offer(payload("fgh")));
+		assertEquals(0, queue.remainingCapacity());
+		queue.poll();
+		assertTrue(queue.offer(payload("ijklm")));
+	}
+
+	@Test
+	public void testRemove() {
+		final OffHeapBlockingQueue queue = new OffHeapBlockingQueue();
+		final ByteBuffer kept = payload("a");
+		queue.offer(kept);
+		queue.offer(payload("b"));
+		queue.offer(payload("c"));
+		queue.offer(payload("d"));
+		final ByteBuffer a = queue.peek();
+
+		assertTrue(queue.remove(payload("b")));
+		assertTrue(queue.removeIf(b -> string(b).equals("d")));
+		final Iterator<ByteBuffer> iter = queue.iterator();
+		assertEquals("a", string(iter.next()));
+		iter.remove();
+		assertEquals(1, queue.size());
+		assertEquals("c", string(queue.poll()));
+		assertEquals("View changed by removal", "a", string(a));
+	}
+
+	@Test
+	public void testAsBucketQueue() {
+		final BucketedBlockingQueue<Byte, ByteBuffer> queue = BucketedBlockingQueue.<Byte, ByteBuffer>builder(b -> b.get(b.position()))
+				.queueSupplier(OffHeapBlockingQueue.queueSupplier())
+				.build();
+		queue.offer(payload("a1"));
+		queue.offer(payload("a2"));
+		queue.offer(payload("b1"));
+
+		assertEquals("a1", string(queue.poll()));
+		assertEquals("b1", string(queue.poll()));
+		assertEquals(1, queue.removeBucket((byte) 'a', null));
+	}
+
+	@Test
+	public void testDrainToRefusedKeepsRest() {
+		final OffHeapBlockingQueue queue = new OffHeapBlockingQueue();
+		for (int i = 0; i < 6; i++) {
+			queue.offer(payload("e" + i));
+		}
+		final ArrayBlockingQueue<ByteBuffer> target = new ArrayBlockingQueue<ByteBuffer>(2);
+		try {
+			queue.drainTo(target);
+		} catch (IllegalStateException e) {
+			// Target full
+		}
+		assertEquals(2, target.size());
+		assertEquals(4, queue.size());
+		assertEquals(8, queue.bytes());
+		for (int i = 2; i < 6; i++) {
+			assertEquals("e" + i, string(queue.poll()));
+		}
+		assertNull(queue.poll());
+	}
+}
@@ -0,0 +1,63 @@
+package com.nerdynick.queue.blocking.bucket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class PrioritySchedulerTest {
+	private static BucketedBlockingQueue<String, String> newQueue(final int starvationLimit) {
+		return BucketedBlockingQueue.<String, String>builder(e -> e.substring(0, 1))
+				.scheduler(new PriorityScheduler<String, String>(2, k -> "h".equals(k) ? 0 : 1, starvationLimit))
+				.build();
+	}
+
+	private static String order(final BucketedBlockingQueue<String, String> queue, final int count) {
+		final StringBuilder order = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			order.append(queue.poll().charAt(0));
+		}
+		return order.toString();
+	}
+
+	@Test
+	public void testHigherTierFirst() {
+		final BucketedBlockingQueue<String, String> queue = newQueue(100);
+		queue.offer("l1");
+		queue.offer("l2");
+		queue.offer("h1");
+		queue.offer("h2");
+
+		assertEquals("hhll", order(queue, 4));
+		assertNull(queue.poll());
+	}
+
+	@Test
+	public void testStarvationGuard() {
+		final BucketedBlockingQueue<String, String> queue = newQueue(2);
+		for (int i = 0; i < 10; i++) {
+			queue.offer("h" + i);
+			queue.offer("l" + i);
+		}
+
+		assertEquals("hhlhhlhhl", order(queue, 9));
+	}
+
+	@Test
+	public void testDrainQuantumPerTier() {
+		final BucketedBlockingQueue<String, String> queue = BucketedBlockingQueue.<String, String>builder(e -> e.substring(0, 1))
+				.scheduler(new PriorityScheduler<String, String>(2, k -> 1, 100, 3))
+				.build();
+		for (int i = 0; i < 4; i++) {
+			queue.offer("a" + i);
+			queue.offer("b" + i);
+		}
+		final List<String> drained = new ArrayList<String>();
+		queue.drainTo(drained, 6);
+		assertEquals(Arrays.asList("a0", "a1", "a2", "b0", "b1", "b2"), drained);
+	}
+}
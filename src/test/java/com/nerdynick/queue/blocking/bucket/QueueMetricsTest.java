@@ -0,0 +1,71 @@
+package com.nerdynick.queue.blocking.bucket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingDeque;
+
+import org.junit.Test;
+
+import com.nerdynick.gauges.Clock.TestClock;
+
+public class QueueMetricsTest {
+	@Test
+	public void testDisabledByDefault() {
+		assertNull(BucketedBlockingQueue.<String, String>builder(e -> e.substring(0, 1)).build().metrics());
+	}
+
+	@Test
+	public void testBucketMetrics() {
+		final TestClock clock = new TestClock(0);
+		final BucketedBlockingQueue<String, String> queue = BucketedBlockingQueue.<String, String>builder(e -> e.substring(0, 1))
+				.clock(clock)
+				.metrics(true)
+				.build();
+		queue.offer("a1");
+		queue.offer("a2");
+		queue.offer("a3");
+		queue.offer("b1");
+
+		clock.add(1000);
+		assertEquals("a1", queue.poll());
+
+		final BucketMetrics<String, String> a = queue.metrics().bucket("a");
+		assertEquals(3, a.enqueueRate());
+		assertEquals(1, a.dequeueRate());
+		assertEquals(2, a.depth());
+		assertEquals(1, queue.metrics().latency().count());
+		assertEquals(1000, queue.metrics().latency().max());
+
+		final List<BucketMetrics<String, String>> hottest = queue.metrics().hottest(1);
+		assertEquals(1, hottest.size());
+		assertEquals("a", hottest.get(0).key());
+	}
+
+	@Test
+	public void testDepthCountsEveryExit() {
+		final BucketedBlockingQueue<String, String> queue = BucketedBlockingQueue.<String, String>builder(e -> e.substring(0, 1))
+				.queueFactory(k -> new LinkedBlockingDeque<String>(Arrays.asList(k + "0", k + "1")))
+				.preload(Arrays.asList("a"))
+				.metrics(true)
+				.build();
+		final BucketMetrics<String, String> a = queue.metrics().bucket("a");
+		assertEquals("Recovered elements weren't counted", 2, a.depth());
+
+		for (int i = 2; i < 8; i++) {
+			queue.offer("a" + i);
+		}
+		assertEquals(8, a.depth());
+		queue.poll();
+		queue.remove("a5");
+		queue.removeIf(e -> e.equals("a6"));
+		assertEquals(5, a.depth());
+		queue.drainTo(new ArrayList<String>(), 3);
+		assertEquals(2, a.depth());
+		queue.clear();
+		assertEquals(0, a.depth());
+	}
+}
@@ -0,0 +1,113 @@
+package com.nerdynick.queue.blocking.bucket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class RingBufferBlockingQueueTest {
+	@Test
+	public void testFifoAcrossGrowth() {
+		final RingBufferBlockingQueue<Integer> queue = new RingBufferBlockingQueue<Integer>();
+		for (int round = 0; round < 3; round++) {
+			// Offset the head so growth has to unwrap the ring
+			queue.offer(-1);
+			queue.poll();
+			for (int i = 0; i < 100; i++) {
+				assertTrue(queue.offer(i));
+			}
+			assertEquals(100, queue.size());
+			for (int i = 0; i < 100; i++) {
+				assertEquals(Integer.valueOf(i), queue.poll());
+			}
+			assertNull(queue.poll());
+			assertTrue(queue.isEmpty());
+		}
+	}
+
+	@Test
+	public void testBounded() throws InterruptedException {
+		final RingBufferBlockingQueue<Integer> queue = new RingBufferBlockingQueue<Integer>(2);
+		assertTrue(queue.offer(1));
+		assertTrue(queue.offer(2));
+		assertFalse(queue.offer(3));
+		assertFalse(queue.offer(3, 10, TimeUnit.MILLISECONDS));
+		assertEquals(0, queue.remainingCapacity());
+	}
+
+	@Test
+	public void testPutBlocksUntilPoll() throws InterruptedException {
+		final RingBufferBlockingQueue<Integer> queue = new RingBufferBlockingQueue<Integer>(1);
+		queue.put(1);
+		final Thread producer = new Thread(() -> {
+			try {
+				queue.put(2);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		producer.start();
+		Thread.sleep(50);
+		assertTrue("Producer didn't block", producer.isAlive());
+
+		assertEquals(Integer.valueOf(1), queue.poll());
+		producer.join(TimeUnit.SECONDS.toMillis(5));
+		assertFalse("Producer didn't wake up", producer.isAlive());
+		assertEquals(Integer.valueOf(2), queue.take());
+	}
+
+	@Test
+	public void testDrainTo() {
+		final RingBufferBlockingQueue<Integer> queue = new RingBufferBlockingQueue<Integer>();
+		queue.addAll(Arrays.asList(1, 2, 3, 4, 5));
+		final List<Integer> drained = new ArrayList<Integer>();
+		assertEquals(3, queue.drainTo(drained, 3));
+		assertEquals(Arrays.asList(1, 2, 3), drained);
+		assertEquals(2, queue.drainTo(drained));
+		assertEquals(Arrays.asList(1, 2, 3, 4, 5), drained);
+		assertEquals(0, queue.drainTo(drained));
+	}
+
+	@Test
+	public void testRemoval() {
+		final RingBufferBlockingQueue<Integer> queue = new RingBufferBlockingQueue<Integer>();
+		queue.addAll(Arrays.asList(1, 2, 3, 4, 5, 6));
+		assertTrue(queue.remove(Integer.valueOf(3)));
+		assertFalse(queue.remove(Integer.valueOf(3)));
+		assertTrue(queue.removeIf(e -> e % 2 == 0));
+
+		final Iterator<Integer> iter = queue.iterator();
+		assertEquals(Integer.valueOf(1), iter.next());
+		iter.remove();
+		assertEquals(Arrays.asList(5), new ArrayList<Integer>(queue));
+	}
+
+	@Test
+	public void testDrainToRefusedKeepsRest() {
+		final RingBufferBlockingQueue<Integer> queue = new RingBufferBlockingQueue<Integer>();
+		for (int i = 0; i < 6; i++) {
+			queue.offer(i);
+		}
+		final ArrayBlockingQueue<Integer> target = new ArrayBlockingQueue<Integer>(2);
+		try {
+			queue.drainTo(target);
+		} catch (IllegalStateException e) {
+			// Target full
+		}
+		assertEquals(Arrays.asList(0, 1), new ArrayList<Integer>(target));
+		assertEquals(4, queue.size());
+		for (int i = 2; i < 6; i++) {
+			assertEquals(Integer.valueOf(i), queue.poll());
+		}
+		assertNull(queue.poll());
+	}
+}
@@ -0,0 +1,301 @@
+package com.nerdynick.queue.blocking.bucket.durable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.nerdynick.queue.blocking.bucket.BucketedBlockingQueue;
+
+public class MappedBucketStoreTest {
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		this.dir = Files.createTempDirectory("mapped-bucket-store").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		delete(this.dir);
+	}
+
+	private static void delete(final File file) {
+		final File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	/**
+	 * @return File keys of the bucket's segments, in sequence order
+	 */
+	private static List<Object> fileKeys(final File bucketDir) throws IOException {
+		final String[] names = bucketDir.list((d, name) -> name.endsWith(MappedSegmentQueue.SEGMENT_SUFFIX));
+		Arrays.sort(names);
+		final List<Object> keys = new ArrayList<Object>();
+		for (String name : names) {
+			keys.add(Files.readAttributes(new File(bucketDir, name).toPath(), BasicFileAttributes.class).fileKey());
+		}
+		return keys;
+	}
+
+	private MappedBucketStore<String, String> open() throws IOException {
+		// Small segments so the elements span several
+		return new MappedBucketStore<String, String>(this.dir, Serializer.utf8(), Serializer.utf8(), 64, 0,
+				TimeUnit.MILLISECONDS);
+	}
+
+	private static BucketedBlockingQueue<String, String> queue(final MappedBucketStore<String, String> store) {
+		return BucketedBlockingQueue.<String, String>builder(e -> e.substring(0, 1))
+				.queueFactory(store::queue)
+				.preload(store.recoveredKeys())
+				.build();
+	}
+
+	@Test
+	public void testRecoversUntakenElements() throws IOException {
+		final List<String> expected = new ArrayList<String>();
+		try (MappedBucketStore<String, String> store = this.open()) {
+			final BucketedBlockingQueue<String, String> queue = queue(store);
+			for (int i = 0; i < 20; i++) {
+				queue.offer("a" + i);
+				if (i < 5) {
+					queue.offer("b" + i);
+				}
+			}
+			assertTrue(store.recoveredKeys().isEmpty());
+			for (int i = 0; i < 7; i++) {
+				queue.poll();
+			}
+			queue.removeIf(e -> e.equals("a15"));
+			for (String e : queue) {
+				expected.add(e);
+			}
+			assertEquals(17, expected.size());
+		}
+
+		try (MappedBucketStore<String, String> store = this.open()) {
+			assertEquals(2, store.recoveredKeys().size());
+			final BucketedBlockingQueue<String, String> queue = queue(store);
+			assertEquals(17, queue.size());
+			final List<String> recovered = new ArrayList<String>();
+			queue.drainTo(recovered);
+			assertEquals(17, recovered.size());
+			recovered.sort(null);
+			expected.sort(null);
+			assertEquals(expected, recovered);
+			assertFalse(recovered.contains("a15"));
+			queue.offer("c1");
+		}
+
+		try (MappedBucketStore<String, String> store = this.open()) {
+			assertEquals(Arrays.asList("c"), new ArrayList<String>(store.recoveredKeys()));
+		}
+	}
+
+	@Test
+	public void testBucketOrderKept() throws IOException {
+		try (MappedBucketStore<String, String> store = this.open()) {
+			final BlockingQueue<String> queue = store.queue("a");
+			for (int i = 0; i < 50; i++) {
+				queue.offer("a" + i);
+			}
+			for (int i = 0; i < 20; i++) {
+				assertEquals("a" + i, queue.poll());
+			}
+		}
+		try (MappedBucketStore<String, String> store = this.open()) {
+			final BlockingQueue<String> queue = store.queue("a");
+			assertEquals(30, queue.size());
+			assertEquals("a20", queue.peek());
+			for (int i = 20; i < 50; i++) {
+				assertEquals("a" + i, queue.poll());
+			}
+			assertNull(queue.poll());
+		}
+	}
+
+	@Test
+	public void testConsumedSegmentsRecycled() throws IOException {
+		try (MappedBucketStore<String, String> store = this.open()) {
+			final BlockingQueue<String> queue = store.queue("a");
+			final File bucketDir = this.dir.listFiles()[0];
+			for (int i = 0; i < 1000; i++) {
+				queue.offer("element" + i);
+				assertEquals("element" + i, queue.poll());
+				if (i % 100 == 0) {
+					store.commit();
+				}
+			}
+			store.commit();
+			final String[] segments = bucketDir.list((d, name) -> name.endsWith(MappedSegmentQueue.SEGMENT_SUFFIX));
+			assertTrue("Consumed segments weren't removed: " + segments.length, segments.length <= 2);
+		}
+	}
+
+	@Test
+	public void testRecycledSegmentIgnoresStaleRecords() throws IOException {
+		// Same sized records, so the recycled segment's old records line up with the new ones
+		try (MappedBucketStore<String, String> store = this.open()) {
+			final BlockingQueue<String> queue = store.queue("a");
+			for (int i = 0; i < 6; i++) {
+				queue.offer(String.format("a%02d", i));
+			}
+			for (int i = 0; i < 6; i++) {
+				queue.poll();
+			}
+			// Retires the first segment as the spare
+			store.commit();
+			for (int i = 6; i < 11; i++) {
+				queue.offer(String.format("a%02d", i));
+			}
+		}
+
+		// Lose the end marker after the recycled segment's first record, as if its
+		// page never reached the disk
+		final File bucketDir = this.dir.listFiles()[0];
+		final String[] segments = bucketDir.list((d, name) -> name.endsWith(MappedSegmentQueue.SEGMENT_SUFFIX));
+		Arrays.sort(segments);
+		try (RandomAccessFile raf = new RandomAccessFile(new File(bucketDir, segments[segments.length - 1]), "rw")) {
+			raf.seek(11);
+			raf.writeInt(4);
+		}
+
+		try (MappedBucketStore<String, String> store = this.open()) {
+			final BlockingQueue<String> queue = store.queue("a");
+			final List<String> recovered = new ArrayList<String>();
+			queue.drainTo(recovered);
+			assertEquals(Arrays.asList("a06", "a07", "a08", "a09", "a10"), recovered);
+		}
+	}
+
+	@Test
+	public void testReopenAfterRollOntoSpare() throws IOException {
+		try (MappedBucketStore<String, String> store = this.open()) {
+			final BlockingQueue<String> queue = store.queue("a");
+			for (int i = 0; i < 6; i++) {
+				queue.offer(String.format("a%02d", i));
+			}
+			for (int i = 0; i < 6; i++) {
+				queue.poll();
+			}
+			// Retires the first segment as the spare
+			store.commit();
+			final File bucketDir = this.dir.listFiles()[0];
+			final Object spare = fileKeys(bucketDir).get(0);
+			for (int i = 6; i < 16; i++) {
+				queue.offer(String.format("a%02d", i));
+			}
+			assertEquals("a06", queue.poll());
+			store.commit();
+			final List<Object> segments = fileKeys(bucketDir);
+			assertTrue("Spare wasn't recycled", spare == null || segments.indexOf(spare) > 0);
+		}
+
+		try (MappedBucketStore<String, String> store = this.open()) {
+			final BlockingQueue<String> queue = store.queue("a");
+			final List<String> recovered = new ArrayList<String>();
+			queue.drainTo(recovered);
+			final List<String> expected = new ArrayList<String>();
+			for (int i = 7; i < 16; i++) {
+				expected.add(String.format("a%02d", i));
+			}
+			assertEquals(expected, recovered);
+		}
+	}
+
+	@Test
+	public void testUnusedQueuesReleased() throws IOException, InterruptedException {
+		try (MappedBucketStore<String, String> store = this.open()) {
+			store.queue("a").offer("a1");
+			store.commit();
+			final WeakReference<BlockingQueue<String>> ref = new WeakReference<BlockingQueue<String>>(store.queue("a"));
+			for (int i = 0; i < 100 && ref.get() != null; i++) {
+				System.gc();
+				Thread.sleep(10);
+			}
+			assertNull("Store kept an unused queue", ref.get());
+			assertEquals("Reopened queue lost its element", "a1", store.queue("a").poll());
+		}
+	}
+
+	@Test
+	public void testPassedSegmentsKeptUntilCommit() throws IOException {
+		try (MappedBucketStore<String, String> store = this.open()) {
+			final BlockingQueue<String> queue = store.queue("a");
+			for (int i = 0; i < 11; i++) {
+				queue.offer(String.format("a%02d", i));
+			}
+			for (int i = 0; i < 11; i++) {
+				queue.poll();
+			}
+			final File bucketDir = this.dir.listFiles()[0];
+			assertEquals("Segments went before the offset past them was committed", 3,
+					bucketDir.list((d, name) -> name.endsWith(MappedSegmentQueue.SEGMENT_SUFFIX)).length);
+			store.commit();
+			assertEquals("Expected only the spare and the current segment", 2,
+					bucketDir.list((d, name) -> name.endsWith(MappedSegmentQueue.SEGMENT_SUFFIX)).length);
+		}
+	}
+
+	@Test
+	public void testDrainToThrowingTarget() throws IOException {
+		try (MappedBucketStore<String, String> store = this.open()) {
+			final BlockingQueue<String> queue = store.queue("a");
+			for (int i = 0; i < 10; i++) {
+				queue.offer("a" + i);
+			}
+			final List<String> drained = new ArrayList<String>();
+			try {
+				queue.drainTo(new AbstractCollection<String>() {
+					@Override
+					public boolean add(final String e) {
+						if (drained.size() == 7) {
+							throw new IllegalStateException("Full");
+						}
+						return drained.add(e);
+					}
+
+					@Override
+					public Iterator<String> iterator() {
+						return drained.iterator();
+					}
+
+					@Override
+					public int size() {
+						return drained.size();
+					}
+				});
+				fail("Target didn't throw");
+			} catch (IllegalStateException e) {
+				// Expected
+			}
+			assertEquals(7, drained.size());
+			assertEquals(3, queue.size());
+			assertEquals("a7", queue.poll());
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package com.nerdynick.queue.blocking.bucket.executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class BucketedExecutorServiceTest {
+	@Test
+	public void testSubmit() throws Exception {
+		final BucketedExecutorService<String> executor = BucketedExecutorService.<String>builder(t -> "k")
+				.threads(2)
+				.build();
+		try {
+			final Future<String> f = executor.submit(() -> "done");
+			assertEquals("done", f.get(1, TimeUnit.SECONDS));
+			assertEquals(Integer.valueOf(7), executor.submit("other", () -> 7).get(1, TimeUnit.SECONDS));
+		} finally {
+			executor.shutdown();
+		}
+		assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testSerialPerKey() throws InterruptedException {
+		final BucketedExecutorService<Integer> executor = BucketedExecutorService.<Integer>builder(t -> 0)
+				.threads(4)
+				.serialPerKey(true)
+				.drainQuantum(8)
+				.build();
+		final ConcurrentHashMap<Integer, Integer> last = new ConcurrentHashMap<Integer, Integer>();
+		final ConcurrentHashMap<Integer, Boolean> running = new ConcurrentHashMap<Integer, Boolean>();
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		for (int i = 0; i < 1000; i++) {
+			for (int k = 0; k < 8; k++) {
+				final int key = k, seq = i;
+				executor.execute(key, () -> {
+					if (running.put(key, true) != null) {
+						failed.set(true);
+					}
+					final Integer prev = last.put(key, seq);
+					if (prev != null && prev != seq - 1) {
+						failed.set(true);
+					}
+					running.remove(key);
+				});
+			}
+		}
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+		assertFalse("A key ran out of order or concurrently", failed.get());
+		assertEquals(Integer.valueOf(999), last.get(7));
+	}
+
+	@Test
+	public void testShutdownRunsQueuedTasks() throws InterruptedException {
+		final BucketedExecutorService<String> executor = BucketedExecutorService.<String>builder(t -> "k")
+				.threads(1)
+				.build();
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final AtomicInteger ran = new AtomicInteger();
+		executor.execute(() -> {
+			try {
+				blocked.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		for (int i = 0; i < 10; i++) {
+			executor.execute(ran::incrementAndGet);
+		}
+		executor.shutdown();
+		blocked.countDown();
+		assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+		assertEquals(10, ran.get());
+
+		try {
+			executor.execute(ran::incrementAndGet);
+			assertTrue("Execute after shutdown wasn't rejected", false);
+		} catch (RejectedExecutionException e) {
+		}
+	}
+
+	@Test
+	public void testShutdownNow() throws InterruptedException {
+		final BucketedExecutorService<String> executor = BucketedExecutorService.<String>builder(t -> "k")
+				.threads(1)
+				.build();
+		final CountDownLatch started = new CountDownLatch(1);
+		final AtomicBoolean interrupted = new AtomicBoolean(false);
+		executor.execute(() -> {
+			started.countDown();
+			try {
+				Thread.sleep(10000);
+			} catch (InterruptedException e) {
+				interrupted.set(true);
+			}
+		});
+		for (int i = 0; i < 5; i++) {
+			executor.execute(() -> {});
+		}
+		started.await();
+
+		final List<Runnable> pending = executor.shutdownNow();
+		assertEquals(5, pending.size());
+		assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+		assertTrue(interrupted.get());
+	}
+}
@@ -0,0 +1,134 @@
+package com.nerdynick.queue.blocking.bucket.sensor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.nerdynick.queue.blocking.bucket.Bucket;
+import com.nerdynick.queue.blocking.bucket.BucketedBlockingQueue;
+import com.nerdynick.queue.blocking.bucket.RingBufferBlockingQueue;
+
+public class AtCapacityCallbackSensorTest {
+	@Test
+	public void testHysteresis() {
+		final List<String> events = new ArrayList<String>();
+		final AtCapacityCallbackSensor<String> sensor = new AtCapacityCallbackSensor<String>("a", 3, 1,
+				k -> events.add("high:" + k), k -> events.add("low:" + k), false);
+
+		sensor.onOffer(3);
+		sensor.onOffer();
+		assertTrue(sensor.isAboveHigh());
+		sensor.onTake();
+		sensor.onTake();
+		sensor.onOffer();
+		assertEquals("Flapped below high before reaching low", 1, events.size());
+
+		sensor.onTake(2);
+		assertFalse(sensor.isAboveHigh());
+		sensor.onOffer();
+		sensor.onTake();
+		assertEquals("Fired between the watermarks", 2, events.size());
+		assertEquals(1, sensor.depth());
+
+		final List<String> expected = new ArrayList<String>();
+		expected.add("high:a");
+		expected.add("low:a");
+		assertEquals(expected, events);
+	}
+
+	@Test
+	public void testShedding() {
+		final List<String> high = new ArrayList<String>();
+		final BucketedBlockingQueue<String, String> queue = BucketedBlockingQueue.<String, String>builder(e -> e.substring(0, 1))
+				.bucketSensor(AtCapacityCallbackSensor.shedding(2, 0, high::add, null))
+				.build();
+
+		assertTrue(queue.offer("a1"));
+		assertTrue(queue.offer("a2"));
+		assertFalse("Offer above high watermark wasn't shed", queue.offer("a3"));
+		assertTrue("Other keys were shed", queue.offer("b1"));
+		assertEquals(1, high.size());
+
+		queue.clear();
+		assertTrue("Clear wasn't seen by the sensor", queue.offer("a4"));
+	}
+
+	@Test
+	public void testTimedOfferRefusedByQueue() throws InterruptedException {
+		final List<String> events = new ArrayList<String>();
+		final AtCapacityCallbackSensor<String> sensor = new AtCapacityCallbackSensor<String>("a", 3, 1,
+				k -> events.add("high"), k -> events.add("low"), false);
+		final Bucket<String, String> bucket = new Bucket<String, String>(new RingBufferBlockingQueue<String>(1),
+				(k, b) -> sensor, "a");
+
+		assertTrue(bucket.offer("a0", 1, TimeUnit.MILLISECONDS));
+		for (int i = 1; i < 6; i++) {
+			assertFalse(bucket.offer("a" + i, 1, TimeUnit.MILLISECONDS));
+		}
+		assertEquals("Refused offers were counted", 1, sensor.depth());
+		assertTrue("High fired for one element", events.isEmpty());
+	}
+
+	@Test
+	public void testPartialDrain() {
+		final AtCapacityCallbackSensor<String> sensor = new AtCapacityCallbackSensor<String>("a", 10, 1, null, null,
+				false);
+		// Drains at most 2 per call, short of what the sensor granted
+		final Bucket<String, String> bucket = new Bucket<String, String>(new LinkedBlockingDeque<String>() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public int drainTo(final Collection<? super String> c, final int maxElements) {
+				return super.drainTo(c, Math.min(2, maxElements));
+			}
+		}, (k, b) -> sensor, "a");
+		for (int i = 0; i < 5; i++) {
+			assertTrue(bucket.offer("a" + i));
+		}
+
+		final List<String> drained = new ArrayList<String>();
+		assertEquals(2, bucket.drainTo(drained, 10));
+		assertEquals("Unused takes weren't given back", 3, sensor.depth());
+		assertEquals(1, bucket.drainTo(drained, 1));
+		assertEquals(2, sensor.depth());
+
+		assertTrue(bucket.remove("a4"));
+		assertEquals(1, sensor.depth());
+	}
+
+	@Test
+	public void testSheddingBoundHoldsForConcurrentPuts() throws InterruptedException {
+		final BucketedBlockingQueue<String, String> queue = BucketedBlockingQueue.<String, String>builder(e -> e.substring(0, 1))
+				.bucketSensor(AtCapacityCallbackSensor.shedding(1000, 0, null, null))
+				.build();
+		final CountDownLatch start = new CountDownLatch(1);
+		final Thread[] producers = new Thread[16];
+		for (int t = 0; t < producers.length; t++) {
+			producers[t] = new Thread(() -> {
+				try {
+					start.await();
+					for (int i = 0; i < 200; i++) {
+						queue.put("a" + i);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+			producers[t].start();
+		}
+		start.countDown();
+		for (Thread producer : producers) {
+			producer.join();
+		}
+		assertEquals("Shedding bound overshot", 1000, queue.size());
+	}
+}
@@ -0,0 +1,78 @@
+package com.nerdynick.queue.blocking.bucket.sensor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.nerdynick.gauges.Clock.TestClock;
+import com.nerdynick.queue.blocking.bucket.BucketedBlockingQueue;
+
+public class TokenBucketTest {
+	private static final long INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+	@Test
+	public void testBurstThenRefill() {
+		final TestClock clock = new TestClock(0);
+		final TokenBucket sensor = new TokenBucket(10, TimeUnit.SECONDS, 3, clock);
+
+		for (int i = 0; i < 3; i++) {
+			assertTrue("Burst token " + i + " wasn't available", sensor.canTake());
+			sensor.onTake();
+		}
+		assertFalse(sensor.canTake());
+		assertEquals(INTERVAL, sensor.takeDelayNanos());
+
+		clock.add(INTERVAL / 2);
+		assertFalse(sensor.canTake());
+		assertEquals(INTERVAL / 2, sensor.takeDelayNanos());
+
+		clock.add(INTERVAL / 2);
+		assertTrue(sensor.canTake());
+		assertEquals(0, sensor.takeDelayNanos());
+	}
+
+	@Test
+	public void testBurstCapped() {
+		final TestClock clock = new TestClock(0);
+		final TokenBucket sensor = new TokenBucket(10, TimeUnit.SECONDS, 2, clock);
+
+		clock.add(TimeUnit.HOURS.toNanos(1));
+		sensor.onTake(2);
+		assertFalse("Idle time accumulated more than the burst", sensor.canTake());
+	}
+
+	@Test
+	public void testBatchTakeGrantsAvailable() {
+		final TestClock clock = new TestClock(0);
+		final TokenBucket sensor = new TokenBucket(10, TimeUnit.SECONDS, 3, clock);
+
+		assertEquals(3, sensor.tryAcquireTake(5));
+		assertEquals(0, sensor.tryAcquireTake(5));
+
+		clock.add(INTERVAL * 2);
+		assertEquals(2, sensor.tryAcquireTake(5));
+		sensor.releaseTake(1);
+		assertEquals(1, sensor.tryAcquireTake(5));
+		assertFalse(sensor.canTake());
+	}
+
+	@Test
+	public void testTakeParksUntilEligible() throws InterruptedException {
+		final BucketedBlockingQueue<String, String> queue = BucketedBlockingQueue.<String, String>builder(e -> e.substring(0, 1))
+				.bucketSensor((k, b) -> TokenBucket.perSecond(20, 1))
+				.build();
+		queue.offer("a1");
+		queue.offer("a2");
+
+		assertEquals("a1", queue.take());
+		final long start = System.nanoTime();
+		assertEquals("a2", queue.take());
+		final long took = System.nanoTime() - start;
+		assertTrue("Take wasn't throttled", took >= TimeUnit.MILLISECONDS.toNanos(40));
+		assertTrue("Take overslept", took < TimeUnit.MILLISECONDS.toNanos(500));
+	}
+}